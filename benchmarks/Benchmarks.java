@@ -0,0 +1,496 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark suite for every project in the repo
+ *
+ * Usage examples:
+ * java Benchmarks
+ * java Benchmarks -filter dpll -iterations 10 -json dpll.json
+ * java Benchmarks -compare before.json after.json
+ *
+ * Each benchmark runs warmup iterations, then measured iterations of a fixed
+ * length. Reports throughput (ops/s) plus allocation rate and GC counts read
+ * from the JVM management beans, the same numbers the JMH gc profiler uses.
+ * Results are written as JSON, one benchmark per line, for later comparison.
+ */
+public class Benchmarks {
+
+    // config given by command line
+    static class Config {
+        String root = "..";
+        String filter = ".*";
+        int warmup = 3;
+        int iterations = 5;
+        long iterationMs = 1000;
+        boolean slow = false;
+        String jsonPath = "bench-results.json";
+        String compareOld;
+        String compareNew;
+    }
+
+    // one call of the code being measured, returns something so it isn't optimized away
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    // prepares an Op, only called if the benchmark is selected
+    interface Setup {
+        Op prepare() throws Exception;
+    }
+
+    // one benchmark with a fixed set of parameters
+    static class Case {
+        String name;
+        Map<String, String> params = new LinkedHashMap<>();
+        Setup setup;
+        boolean slow;
+
+        Case(String name, Setup setup) {
+            this.name = name;
+            this.setup = setup;
+        }
+
+        Case param(String key, Object value) {
+            this.params.put(key, String.valueOf(value));
+            return this;
+        }
+
+        Case slow() {
+            this.slow = true;
+            return this;
+        }
+
+        String label() {
+            return this.params.isEmpty() ? this.name : this.name + " " + this.params;
+        }
+    }
+
+    // measured numbers for one case
+    static class Result {
+        Case c;
+        double[] scores;
+        double allocBytesPerOp;
+        double allocMbPerSec;
+        long gcCount;
+        long gcTimeMs;
+    }
+
+    // results are folded in here so the JIT can't drop the work
+    static volatile int sink;
+
+    public static void main(String[] args) {
+        try {
+            Config cfg = parseArgs(args);
+            if (cfg.compareOld != null) {
+                compare(cfg.compareOld, cfg.compareNew);
+                return;
+            }
+
+            List<Case> cases = registerCases(cfg);
+            Pattern filter = Pattern.compile(cfg.filter);
+            List<Result> results = new ArrayList<>();
+            for (Case c : cases) {
+                if (!filter.matcher(c.label()).find() || (c.slow && !cfg.slow)) {
+                    continue;
+                }
+                System.out.println("# " + c.label());
+                Result r = measure(c, cfg);
+                results.add(r);
+                System.out.printf(Locale.ROOT, "  %.3f ops/s  %.1f B/op  %.1f MB/s  gc=%d (%d ms)%n",
+                        mean(r.scores), r.allocBytesPerOp, r.allocMbPerSec, r.gcCount, r.gcTimeMs);
+            }
+
+            printSummary(results);
+            writeJson(results, cfg.jsonPath);
+            System.out.println("Results written to " + cfg.jsonPath);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            System.err.println("Unexpected error: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(3);
+        }
+    }
+
+    static Config parseArgs(String[] args) {
+        Config cfg = new Config();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-slow")) {
+                cfg.slow = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing argument for " + a);
+            }
+            switch (a) {
+                case "-root":
+                    cfg.root = args[++i];
+                    break;
+                case "-filter":
+                    cfg.filter = args[++i];
+                    break;
+                case "-warmup":
+                    cfg.warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-iterations":
+                    cfg.iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-time":
+                    cfg.iterationMs = Long.parseLong(args[++i]);
+                    break;
+                case "-json":
+                    cfg.jsonPath = args[++i];
+                    break;
+                case "-compare":
+                    if (i + 2 >= args.length) {
+                        throw new IllegalArgumentException("-compare needs two JSON files");
+                    }
+                    cfg.compareOld = args[++i];
+                    cfg.compareNew = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown flag: " + a);
+            }
+        }
+        if (cfg.iterations < 1 || cfg.warmup < 0 || cfg.iterationMs < 1) {
+            throw new IllegalArgumentException("iterations and time must be > 0, warmup >= 0");
+        }
+        return cfg;
+    }
+
+    /**
+     * Every benchmark in the suite, parameters are expanded into one case each
+     *
+     * @param cfg parsed flags, used for the data root
+     * @return list of cases in run order
+     */
+    static List<Case> registerCases(Config cfg) {
+        List<Case> cases = new ArrayList<>();
+        String p2 = cfg.root + File.separator + "project2" + File.separator;
+        String p3 = cfg.root + File.separator + "project3" + File.separator;
+
+        // project1, N-Queens
+        for (int n : new int[] { 8, 16, 24 }) {
+            cases.add(new Case("nqueens.dfs", () -> () -> new NQueensDfs(n)).param("N", n));
+        }
+        for (int n : new int[] { 8, 32, 64 }) {
+            cases.add(new Case("nqueens.hc",
+                    () -> () -> new NQueensHillClimbing(n, 10, 10, 1).getStatus()).param("N", n));
+        }
+
+        // project2, DPLL on the bundled CNF files
+        String[] cnfFiles = { "tiny.txt.2.dp", "oz.txt.3.dp", "triangle.txt.3.dp", "us48.txt.4.dp", "hard1006.txt" };
+        for (String f : cnfFiles) {
+            Case c = new Case("dpll.solve", () -> {
+                List<List<String>> cnf = DPLLSolver.parseCNF(new File(p2 + f));
+                return () -> new DPLLSolver(false).solve(cnf);
+            }).param("instance", f);
+            // hard1006 takes minutes with this solver, only run it when asked
+            cases.add(f.startsWith("hard") ? c.slow() : c);
+        }
+
+        // project2, BNF to CNF conversion of a whole file
+        for (String f : new String[] { "triangle.txt.bnf.3.dp", "us48.txt.bnf.4.dp" }) {
+            cases.add(new Case("bnf.toCNF", () -> {
+                List<String> lines = Files.readAllLines(Paths.get(p2 + f));
+                BNFToCNF converter = new BNFToCNF(false);
+                return () -> {
+                    int clauses = 0;
+                    for (String line : lines) {
+                        if (!line.isEmpty()) {
+                            clauses += converter.toCNF(line).size();
+                        }
+                    }
+                    return clauses;
+                };
+            }).param("instance", f));
+        }
+
+        // project3, Markov
+        for (int n : new int[] { 50, 200, 500 }) {
+            cases.add(new Case("markov.gaussianSolve", () -> {
+                double[][] a = randomSystem(n, 42);
+                double[] b = new double[n];
+                java.util.Arrays.fill(b, 1.0);
+                return () -> Markov.gaussianSolve(a, b);
+            }).param("n", n));
+        }
+        cases.add(new Case("markov.valueIteration", () -> {
+            Markov.Config mcfg = Markov.parseArgs(new String[] { p3 + "test.txt" });
+            Markov.Graph g = Markov.loadGraph(mcfg.inputPath);
+            Markov.Policy pi = Markov.initialPolicy(g);
+            return () -> Markov.valueIteration(g, pi, mcfg);
+        }).param("instance", "test.txt"));
+
+        // project 4, dice game self-play training
+        for (int games : new int[] { 1000, 100000 }) {
+            cases.add(new Case("dice.train", () -> {
+                DiceLearning.Config dcfg = new DiceLearning.Config();
+                dcfg.NS = 6;
+                dcfg.ND = 3;
+                dcfg.H = 21;
+                dcfg.L = 18;
+                dcfg.G = games;
+                dcfg.M = 10;
+                return () -> {
+                    DiceLearning.initTables(dcfg);
+                    DiceLearning.train(dcfg);
+                    return dcfg.G;
+                };
+            }).param("G", games));
+        }
+
+        return cases;
+    }
+
+    /**
+     * @param n    size of the system
+     * @param seed seed for random number generation
+     * @return diagonally dominant matrix so it is never singular
+     */
+    static double[][] randomSystem(int n, long seed) {
+        Random rand = new Random(seed);
+        double[][] a = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            double rowSum = 0;
+            for (int j = 0; j < n; j++) {
+                a[i][j] = rand.nextDouble() - 0.5;
+                rowSum += Math.abs(a[i][j]);
+            }
+            a[i][i] = rowSum + 1.0;
+        }
+        return a;
+    }
+
+    /**
+     * Runs the warmup and measured iterations for one case
+     * The code under test has its output silenced so it doesn't skew timing
+     *
+     * @param c   case to run
+     * @param cfg parsed flags
+     * @return measured numbers
+     */
+    static Result measure(Case c, Config cfg) throws Exception {
+        Op op = c.setup.prepare();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        Result r = new Result();
+        r.c = c;
+        r.scores = new double[cfg.iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        long totalNanos = 0;
+
+        System.setOut(quiet);
+        System.setErr(quiet);
+        try {
+            for (int w = 0; w < cfg.warmup; w++) {
+                runIteration(op, cfg.iterationMs);
+            }
+
+            long gcCountStart = gcCount();
+            long gcTimeStart = gcTime();
+            for (int it = 0; it < cfg.iterations; it++) {
+                long bytesStart = threads.getThreadAllocatedBytes(tid);
+                long start = System.nanoTime();
+                long ops = runIteration(op, cfg.iterationMs);
+                long nanos = System.nanoTime() - start;
+                long bytes = threads.getThreadAllocatedBytes(tid) - bytesStart;
+
+                r.scores[it] = ops / (nanos / 1e9);
+                totalOps += ops;
+                totalBytes += bytes;
+                totalNanos += nanos;
+            }
+            r.gcCount = gcCount() - gcCountStart;
+            r.gcTimeMs = gcTime() - gcTimeStart;
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        r.allocBytesPerOp = (double) totalBytes / totalOps;
+        r.allocMbPerSec = (totalBytes / (1024.0 * 1024.0)) / (totalNanos / 1e9);
+        return r;
+    }
+
+    /**
+     * Calls the op until the iteration time is used up, at least once
+     *
+     * @return number of calls made
+     */
+    static long runIteration(Op op, long iterationMs) throws Exception {
+        long deadline = System.nanoTime() + iterationMs * 1_000_000L;
+        long ops = 0;
+        int acc = 0;
+        do {
+            Object result = op.run();
+            acc ^= (result == null) ? 0 : result.hashCode();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        sink ^= acc;
+        return ops;
+    }
+
+    static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    static double mean(double[] xs) {
+        double s = 0;
+        for (double x : xs) {
+            s += x;
+        }
+        return s / xs.length;
+    }
+
+    /**
+     * @return half width of a 99.9% interval, same as the JMH score error
+     */
+    static double error(double[] xs) {
+        if (xs.length < 2) {
+            return Double.NaN;
+        }
+        double m = mean(xs);
+        double ss = 0;
+        for (double x : xs) {
+            ss += (x - m) * (x - m);
+        }
+        double sd = Math.sqrt(ss / (xs.length - 1));
+        // normal approximation rather than Student's t
+        return 3.291 * sd / Math.sqrt(xs.length);
+    }
+
+    static void printSummary(List<Result> results) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-60s %14s %12s %14s %10s%n", "Benchmark", "ops/s", "error", "alloc B/op",
+                "MB/s");
+        for (Result r : results) {
+            System.out.printf(Locale.ROOT, "%-60s %14.3f %12.3f %14.1f %10.1f%n", r.c.label(), mean(r.scores),
+                    error(r.scores), r.allocBytesPerOp, r.allocMbPerSec);
+        }
+    }
+
+    /**
+     * Writes results in a JMH-like layout, one benchmark object per line so
+     * compare can read it back without a JSON library
+     */
+    static void writeJson(List<Result> results, String path) throws IOException {
+        try (FileWriter fw = new FileWriter(path)) {
+            fw.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                StringBuilder sb = new StringBuilder();
+                sb.append("{\"benchmark\":\"").append(r.c.name).append("\",\"mode\":\"thrpt\",\"params\":{");
+                int k = 0;
+                for (Map.Entry<String, String> e : r.c.params.entrySet()) {
+                    if (k++ > 0) {
+                        sb.append(',');
+                    }
+                    sb.append('"').append(e.getKey()).append("\":\"").append(e.getValue()).append('"');
+                }
+                sb.append("},\"primaryMetric\":{\"score\":").append(num(mean(r.scores)))
+                        .append(",\"scoreError\":").append(num(error(r.scores)))
+                        .append(",\"scoreUnit\":\"ops/s\",\"rawData\":[");
+                for (int s = 0; s < r.scores.length; s++) {
+                    if (s > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(num(r.scores[s]));
+                }
+                sb.append("]},\"secondaryMetrics\":{")
+                        .append("\"gc.alloc.rate\":{\"score\":").append(num(r.allocMbPerSec))
+                        .append(",\"scoreUnit\":\"MB/sec\"},")
+                        .append("\"gc.alloc.rate.norm\":{\"score\":").append(num(r.allocBytesPerOp))
+                        .append(",\"scoreUnit\":\"B/op\"},")
+                        .append("\"gc.count\":{\"score\":").append(r.gcCount).append(",\"scoreUnit\":\"counts\"},")
+                        .append("\"gc.time\":{\"score\":").append(r.gcTimeMs).append(",\"scoreUnit\":\"ms\"}}}");
+                if (i + 1 < results.size()) {
+                    sb.append(',');
+                }
+                fw.write(sb.toString() + "\n");
+            }
+            fw.write("]\n");
+        }
+    }
+
+    static String num(double x) {
+        return Double.isNaN(x) || Double.isInfinite(x) ? "null" : String.format(Locale.ROOT, "%.6f", x);
+    }
+
+    /**
+     * Prints the throughput and allocation change of every benchmark found in
+     * both files
+     */
+    static void compare(String oldPath, String newPath) throws IOException {
+        Map<String, double[]> before = readJson(oldPath);
+        Map<String, double[]> after = readJson(newPath);
+        System.out.printf(Locale.ROOT, "%-60s %14s %14s %9s %14s %14s%n", "Benchmark", "old ops/s", "new ops/s",
+                "change", "old B/op", "new B/op");
+        for (Map.Entry<String, double[]> e : after.entrySet()) {
+            double[] o = before.get(e.getKey());
+            if (o == null) {
+                continue;
+            }
+            double[] n = e.getValue();
+            System.out.printf(Locale.ROOT, "%-60s %14.3f %14.3f %+8.1f%% %14.1f %14.1f%n", e.getKey(), o[0], n[0],
+                    (n[0] - o[0]) / o[0] * 100.0, o[1], n[1]);
+        }
+    }
+
+    /**
+     * @return map of "benchmark params" to {score, alloc B/op}
+     */
+    static Map<String, double[]> readJson(String path) throws IOException {
+        Pattern line = Pattern.compile(
+                "\"benchmark\":\"([^\"]+)\".*?\"params\":(\\{[^}]*\\}).*?\"score\":([-0-9.eE]+|null).*"
+                        + "\"gc.alloc.rate.norm\":\\{\"score\":([-0-9.eE]+|null)");
+        Map<String, double[]> out = new LinkedHashMap<>();
+        for (String raw : Files.readAllLines(Paths.get(path))) {
+            Matcher m = line.matcher(raw);
+            if (m.find()) {
+                out.put(m.group(1) + " " + m.group(2), new double[] { parseNum(m.group(3)), parseNum(m.group(4)) });
+            }
+        }
+        return out;
+    }
+
+    static double parseNum(String s) {
+        return s.equals("null") ? Double.NaN : Double.parseDouble(s);
+    }
+}
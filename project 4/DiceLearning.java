@@ -1,7 +1,12 @@
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DiceLearning {
 
@@ -13,19 +18,24 @@ public class DiceLearning {
         int L; // low winning score
         int G; // number of training games
         int M; // exploration vs exploitation parameter
+        int T = 1; // training threads
         boolean verbose; //type -v for verbose
     }
 
-    private static final Random RNG = new Random();
-
     /*
-     * Wins[x][y][d], Losses[x][y][d]
+     * Wins(x, y, d), Losses(x, y, d), flattened, see cell()
      * // x: current player score (0..L-1)
      * // y: opponent score (0..L-1)
      * d: number of dice (1..ND); index 0 unused
      */
-    private static int[][][] wins;
-    private static int[][][] losses;
+    private static int[] wins;
+    private static int[] losses;
+    // held while a worker merges into the tables above or copies them
+    private static final Object TABLE_LOCK = new Object();
+
+    // games a worker plays between merges, at least this many so the merge
+    // (a full table copy) stays small next to the games it covers
+    private static final int MERGE_GAMES = 1024;
 
     public static void main(String[] args) {
         Config cfg = parseArgs(args);
@@ -62,7 +72,7 @@ public class DiceLearning {
                 i++;
             } else if (flag.equals("-NS") || flag.equals("-ND") ||
                     flag.equals("-H") || flag.equals("-L") ||
-                    flag.equals("-G") || flag.equals("-M")) {
+                    flag.equals("-G") || flag.equals("-M") || flag.equals("-T")) {
                 if (i + 1 >= args.length) {
                     die("Missing value for flag " + flag);
                 }
@@ -93,6 +103,9 @@ public class DiceLearning {
                     case "-M":
                         cfg.M = ival;
                         break;
+                    case "-T":
+                        cfg.T = ival;
+                        break;
                 }
                 i += 2;
             } else {
@@ -125,31 +138,124 @@ public class DiceLearning {
         if (cfg.M < 0) {
             die("Error: M must be >= 0.");
         }
+        if (cfg.T < 1) {
+            die("Error: T must be >= 1.");
+        }
     }
 
     // Init table based on config obeject given
-    private static void initTables(Config cfg) {
-        int L = cfg.L;
-        int ND = cfg.ND;
-        wins = new int[L][L][ND + 1];
-        losses = new int[L][L][ND + 1];
+    // package level so the benchmarks can train without going through main
+    static void initTables(Config cfg) {
+        int cells = cfg.L * cfg.L * (cfg.ND + 1);
+        wins = new int[cells];
+        losses = new int[cells];
+    }
+
+    // index of (x, y, d) in the flattened tables
+    private static int cell(int x, int y, int d, Config cfg) {
+        return (x * cfg.L + y) * (cfg.ND + 1) + d;
     }
 
-    private static void train(Config cfg) {
-        for (int g = 0; g < cfg.G; g++) {
-            playOneGame(cfg);
+    // One training thread: its own RNG, the tables it plays against, and
+    // scratch arrays reused from game to game
+    private static class Worker {
+        final SplittableRandom rng;
+        final int[] wins;
+        final int[] losses;
+        // cells this worker counted since its last merge, cell * 2 + 1 for a win
+        // null when the worker updates the shared tables directly
+        int[] log;
+        int logged;
+
+        int[] players = new int[64];
+        int[] xs = new int[64];
+        int[] ys = new int[64];
+        int[] ds = new int[64];
+        final double[] Wd;
+        final double[] probs;
+
+        Worker(Config cfg, SplittableRandom rng, int[] wins, int[] losses, boolean merges) {
+            this.rng = rng;
+            this.wins = wins;
+            this.losses = losses;
+            this.log = merges ? new int[1024] : null;
+            this.Wd = new double[cfg.ND + 1];
+            this.probs = new double[cfg.ND + 1];
         }
     }
 
-    private static int playOneGame(Config cfg) {
+    /**
+     * Plays cfg.G games of self-play, updating the tables after each game
+     * With -T above 1 the games are split between threads, each with its own
+     * SplittableRandom and a private copy of the tables. A worker adds its
+     * counts into the shared tables every 1024 games (every L * L * (ND + 1) / 16
+     * games when that is more, so the table copy stays cheap) and takes a
+     * fresh copy back, so it learns from the others' games with a small delay
+     * and never waits on them in between
+     */
+    static void train(Config cfg) {
+        SplittableRandom root = new SplittableRandom();
+        int threads = Math.min(cfg.T, cfg.G);
+        if (threads == 1 || cfg.verbose) {
+            // verbose output would interleave, so it always trains on one thread
+            Worker w = new Worker(cfg, root, wins, losses, false);
+            for (int g = 0; g < cfg.G; g++) {
+                playOneGame(cfg, w);
+            }
+            return;
+        }
+
+        int mergeEvery = Math.max(MERGE_GAMES, wins.length / 16);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int games = cfg.G / threads + (t < cfg.G % threads ? 1 : 0);
+                Worker w = new Worker(cfg, root.split(), new int[wins.length], new int[losses.length], true);
+                futures.add(pool.submit(() -> {
+                    merge(w);
+                    for (int g = 1; g <= games; g++) {
+                        playOneGame(cfg, w);
+                        if (g % mergeEvery == 0) {
+                            merge(w);
+                        }
+                    }
+                    merge(w);
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Training failed", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // adds a worker's logged counts to the shared tables and refreshes its copy
+    private static void merge(Worker w) {
+        synchronized (TABLE_LOCK) {
+            for (int i = 0; i < w.logged; i++) {
+                int entry = w.log[i];
+                if ((entry & 1) != 0) {
+                    wins[entry >>> 1]++;
+                } else {
+                    losses[entry >>> 1]++;
+                }
+            }
+            System.arraycopy(wins, 0, w.wins, 0, wins.length);
+            System.arraycopy(losses, 0, w.losses, 0, losses.length);
+        }
+        w.logged = 0;
+    }
+
+    private static int playOneGame(Config cfg, Worker w) {
         int[] scores = new int[] { 0, 0 };
         int currentPlayer = 0;
-        // Record of (player, x, y, d)
-        int capacity = 64;
-        int[] players = new int[capacity];
-        int[] xs = new int[capacity];
-        int[] ys = new int[capacity];
-        int[] ds = new int[capacity];
+        // Record of (player, x, y, d), kept in the worker between games
+        int capacity = w.players.length;
         int steps = 0;
 
         if (cfg.verbose) {
@@ -166,26 +272,26 @@ public class DiceLearning {
                 break;
             }
 
-            int d = chooseNumDice(x, y, cfg);
+            int d = chooseNumDice(x, y, cfg, w);
 
             // Store current state
             if (steps == capacity) {
                 capacity *= 2;
-                players = grow(players, capacity);
-                xs = grow(xs, capacity);
-                ys = grow(ys, capacity);
-                ds = grow(ds, capacity);
+                w.players = grow(w.players, capacity);
+                w.xs = grow(w.xs, capacity);
+                w.ys = grow(w.ys, capacity);
+                w.ds = grow(w.ds, capacity);
             }
-            players[steps] = currentPlayer;
-            xs[steps] = x;
-            ys[steps] = y;
-            ds[steps] = d;
+            w.players[steps] = currentPlayer;
+            w.xs[steps] = x;
+            w.ys[steps] = y;
+            w.ds[steps] = d;
             steps++;
 
             // Roll the dice
             int rollSum = 0;
             for (int i = 0; i < d; i++) {
-                rollSum += 1 + RNG.nextInt(cfg.NS);
+                rollSum += 1 + w.rng.nextInt(cfg.NS);
             }
             int newScore = x + rollSum;
 
@@ -225,27 +331,35 @@ public class DiceLearning {
         }
 
         // Update tables
+        if (w.log != null && w.logged + steps > w.log.length) {
+            w.log = grow(w.log, Math.max(w.log.length * 2, w.logged + steps));
+        }
         for (int i = 0; i < steps; i++) {
-            int player = players[i];
-            int x = xs[i];
-            int y = ys[i];
-            int d = ds[i];
+            int player = w.players[i];
+            int x = w.xs[i];
+            int y = w.ys[i];
+            int d = w.ds[i];
 
             // Only update if indices are within table
             if (x >= 0 && x < cfg.L && y >= 0 && y < cfg.L && d >= 1 && d <= cfg.ND) {
-                if (player == winner) {
-                    wins[x][y][d]++;
+                int c = cell(x, y, d, cfg);
+                boolean won = player == winner;
+                if (won) {
+                    w.wins[c]++;
                     if (cfg.verbose) {
                         System.out.println("Update: Wins[" + x + "," + y + "," + d + "] -> " +
-                                wins[x][y][d]);
+                                w.wins[c]);
                     }
                 } else {
-                    losses[x][y][d]++;
+                    w.losses[c]++;
                     if (cfg.verbose) {
                         System.out.println("Update: Losses[" + x + "," + y + "," + d + "] -> " +
-                                losses[x][y][d]);
+                                w.losses[c]);
                     }
                 }
+                if (w.log != null) {
+                    w.log[w.logged++] = (c << 1) | (won ? 1 : 0);
+                }
             }
         }
 
@@ -254,9 +368,7 @@ public class DiceLearning {
 
     // resize the array
     private static int[] grow(int[] arr, int newCap) {
-        int[] out = new int[newCap];
-        System.arraycopy(arr, 0, out, 0, arr.length);
-        return out;
+        return Arrays.copyOf(arr, newCap);
     }
 
     /**
@@ -266,15 +378,16 @@ public class DiceLearning {
      * @param currentPlayerScore
      */
 
-    private static int chooseNumDice(int currentPlayerScore, int otherPlayerScore, Config cfg) {
+    private static int chooseNumDice(int currentPlayerScore, int otherPlayerScore, Config cfg, Worker w) {
         int ND = cfg.ND;
 
-        double[] Wd = new double[ND + 1];
+        double[] Wd = w.Wd;
         int T = 0;
+        int base = cell(currentPlayerScore, otherPlayerScore, 0, cfg);
 
         for (int numDice = 1; numDice <= ND; numDice++) {
-            int totalWins = wins[currentPlayerScore][otherPlayerScore][numDice];
-            int totalLosses = losses[currentPlayerScore][otherPlayerScore][numDice];
+            int totalWins = w.wins[base + numDice];
+            int totalLosses = w.losses[base + numDice];
             int visits = totalWins + totalLosses;
             T += visits;
             if (visits > 0) {
@@ -286,7 +399,7 @@ public class DiceLearning {
 
         // No visits: uniform random
         if (T == 0) {
-            return 1 + RNG.nextInt(ND);
+            return 1 + w.rng.nextInt(ND);
         }
 
         // Find best d (argmax Wd)
@@ -302,7 +415,7 @@ public class DiceLearning {
         }
 
         // settle ties randomly
-        int chosenRank = (countBest == 0) ? 1 : (1 + RNG.nextInt(countBest));
+        int chosenRank = (countBest == 0) ? 1 : (1 + w.rng.nextInt(countBest));
         int best = -1;
         int seen = 0;
         for (int d = 1; d <= ND; d++) {
@@ -327,8 +440,8 @@ public class DiceLearning {
         // P_best = (T*Wb + M) / (T*Wb + M*ND)
         double Pbest = (Tdouble * Wb + M) / (Tdouble * Wb + M * ND);
 
-        // Probabilities for each d
-        double[] probs = new double[ND + 1];
+        // Probabilities for each d, every entry is written below
+        double[] probs = w.probs;
         probs[best] = Pbest;
 
         // Others
@@ -370,7 +483,7 @@ public class DiceLearning {
         }
 
         // Sample according to probs
-        double r = RNG.nextDouble();
+        double r = w.rng.nextDouble();
         double cum = 0.0;
         for (int d = 1; d <= ND; d++) {
             cum += probs[d];
@@ -394,8 +507,8 @@ public class DiceLearning {
         int totalVisits = 0;
 
         for (int d = 1; d <= ND; d++) {
-            int w = wins[currentPlayerScore][otherPlayerScore][d];
-            int l = losses[currentPlayerScore][otherPlayerScore][d];
+            int w = wins[cell(currentPlayerScore, otherPlayerScore, d, cfg)];
+            int l = losses[cell(currentPlayerScore, otherPlayerScore, d, cfg)];
             int visits = w + l;
             totalVisits += visits;
             if (visits > 0) {
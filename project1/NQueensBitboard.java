@@ -0,0 +1,246 @@
+import java.time.Instant;
+import java.util.Arrays;
+
+public class NQueensBitboard {
+
+    private int boardSize;
+    private boolean countAll;
+    private int[] queenPos;
+    private long solutionCount;
+    private String status;
+
+    /**
+     * Bitmask version of NQueensDfs
+     * Columns and both diagonals are kept as bitsets so each placement is O(1)
+     * Boards up to 64 wide use a single long per set, larger boards use long[]
+     *
+     * @param boardSize Length and width of the board
+     * @param countAll  True to count every solution, false to stop at the first
+     */
+    public NQueensBitboard(int boardSize, boolean countAll) {
+        this.boardSize = boardSize;
+        this.countAll = countAll;
+        this.queenPos = new int[boardSize];
+        this.solutionCount = 0;
+        this.status = "";
+
+        this.solve();
+    }
+
+    /**
+     * Picks the single word or multi word engine depending on board size
+     */
+    private void solve() {
+        boolean found;
+        if (this.boardSize <= 64) {
+            long full = fullMask(this.boardSize);
+            if (this.countAll) {
+                this.solutionCount = countSolutions(full, 0L, 0L, 0L);
+                found = this.solutionCount > 0;
+            } else {
+                found = placeQueen(0, full, 0L, 0L, 0L);
+                this.solutionCount = found ? 1 : 0;
+            }
+        } else {
+            found = this.solveWide();
+        }
+
+        if (!found) {
+            this.status = "No solution";
+        } else if (this.countAll) {
+            this.status = "Found " + this.solutionCount + " solutions";
+        } else {
+            this.status = "Found valid solution";
+        }
+    }
+
+    /**
+     * @param boardSize Number of files on the board (at most 64)
+     * @return Long with the lowest boardSize bits set
+     */
+    static long fullMask(int boardSize) {
+        return boardSize == 64 ? -1L : (1L << boardSize) - 1;
+    }
+
+    /**
+     * Finds the first solution, filling queenPos as it goes
+     *
+     * @param rank  Current rank we are attempting to place a queen on
+     * @param full  Mask of every file on the board
+     * @param cols  Files that already hold a queen
+     * @param left  Squares on this rank attacked along a down-left diagonal
+     * @param right Squares on this rank attacked along a down-right diagonal
+     * @return True if a queen was able to be placed, else false
+     */
+    private boolean placeQueen(int rank, long full, long cols, long left, long right) {
+        if (cols == full) {
+            return true;
+        }
+
+        long avail = ~(cols | left | right) & full;
+        while (avail != 0) {
+            // take the lowest open file
+            long bit = avail & -avail;
+            avail ^= bit;
+            this.queenPos[rank] = Long.numberOfTrailingZeros(bit);
+            if (placeQueen(rank + 1, full, cols | bit, ((left | bit) << 1) & full, (right | bit) >>> 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts every solution below the given partial placement
+     * Package level so the parallel solver can count its own subtrees
+     *
+     * @param full  Mask of every file on the board
+     * @param cols  Files that already hold a queen
+     * @param left  Squares on this rank attacked along a down-left diagonal
+     * @param right Squares on this rank attacked along a down-right diagonal
+     * @return Number of complete boards reachable from this placement
+     */
+    static long countSolutions(long full, long cols, long left, long right) {
+        if (cols == full) {
+            return 1;
+        }
+
+        long total = 0;
+        long avail = ~(cols | left | right) & full;
+        while (avail != 0) {
+            long bit = avail & -avail;
+            avail ^= bit;
+            total += countSolutions(full, cols | bit, ((left | bit) << 1) & full, (right | bit) >>> 1);
+        }
+        return total;
+    }
+
+    /**
+     * Same search as above for boards wider than 64 files
+     * Bitsets are long[] words, one set of words per rank so nothing is
+     * allocated while searching
+     *
+     * @return True if at least one solution was found
+     */
+    private boolean solveWide() {
+        int words = (this.boardSize + 63) >>> 6;
+        long[] full = new long[words];
+        for (int w = 0; w < words; w++) {
+            int bits = Math.min(64, this.boardSize - (w << 6));
+            full[w] = fullMask(bits);
+        }
+
+        long[][] cols = new long[this.boardSize + 1][words];
+        long[][] left = new long[this.boardSize + 1][words];
+        long[][] right = new long[this.boardSize + 1][words];
+        long[][] avail = new long[this.boardSize][words];
+
+        this.searchWide(0, full, cols, left, right, avail);
+        return this.solutionCount > 0;
+    }
+
+    /**
+     * @param rank  Current rank we are attempting to place a queen on
+     * @param full  Words covering every file on the board
+     * @param cols  Occupied files, indexed by rank
+     * @param left  Down-left attacks, indexed by rank
+     * @param right Down-right attacks, indexed by rank
+     * @param avail Scratch words for the open files of each rank
+     * @return True if the search should stop (first solution found)
+     */
+    private boolean searchWide(int rank, long[] full, long[][] cols, long[][] left, long[][] right,
+            long[][] avail) {
+        if (rank == this.boardSize) {
+            this.solutionCount++;
+            return !this.countAll;
+        }
+
+        int words = full.length;
+        long[] open = avail[rank];
+        for (int w = 0; w < words; w++) {
+            open[w] = ~(cols[rank][w] | left[rank][w] | right[rank][w]) & full[w];
+        }
+
+        for (int w = 0; w < words; w++) {
+            while (open[w] != 0) {
+                long bit = open[w] & -open[w];
+                open[w] ^= bit;
+                int file = (w << 6) + Long.numberOfTrailingZeros(bit);
+                this.queenPos[rank] = file;
+
+                // build the next rank's sets, shifting across word boundaries
+                long[] nextCols = cols[rank + 1];
+                long[] nextLeft = left[rank + 1];
+                long[] nextRight = right[rank + 1];
+                long carryLeft = 0;
+                for (int k = 0; k < words; k++) {
+                    long c = cols[rank][k];
+                    long l = left[rank][k];
+                    long r = right[rank][k];
+                    if (k == w) {
+                        c |= bit;
+                        l |= bit;
+                        r |= bit;
+                    }
+                    nextCols[k] = c;
+                    nextLeft[k] = ((l << 1) | carryLeft) & full[k];
+                    carryLeft = l >>> 63;
+                    nextRight[k] = r >>> 1;
+                    if (k > 0) {
+                        nextRight[k - 1] |= r << 63;
+                    }
+                }
+
+                if (searchWide(rank + 1, full, cols, left, right, avail)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return String of the queen file on each rank
+     */
+    public String getQueenPosString() {
+        if (this.countAll) {
+            return "[]";
+        }
+        return Arrays.toString(this.queenPos);
+    }
+
+    /**
+     * @return Number of solutions found, at most 1 outside of count mode
+     */
+    public long getSolutionCount() {
+        return this.solutionCount;
+    }
+
+    /**
+     * @return String of the status given by solve
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Should not need to use this
+     * Use nq.java instead
+     * @param args[0] Int for the dimensions of the board
+     * @param args[1] Optional "count" to count every solution
+     */
+    public static void main(String args[]) {
+        Instant startTimeObject = Instant.now();
+        Long startTime = startTimeObject.toEpochMilli();
+
+        boolean countAll = args.length >= 2 && args[1].equalsIgnoreCase("count");
+        NQueensBitboard queens = new NQueensBitboard(Integer.parseInt(args[0]), countAll);
+        System.out.println(queens.getStatus());
+        System.out.println(queens.getQueenPosString());
+
+        Instant endTimeObject = Instant.now();
+        Long endTime = (endTimeObject.toEpochMilli() - startTime);
+
+        System.out.println("Time taken: " + endTime.toString() + " ms");
+    }
+}
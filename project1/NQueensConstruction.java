@@ -0,0 +1,142 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Arrays;
+
+public class NQueensConstruction {
+
+    private int[] queenPos;
+
+    /**
+     * Builds a valid board directly from the closed form patterns
+     * No searching, O(N) time and only the int[] of queen files
+     *
+     * @param boardSize Length and width of the board, must be >= 4
+     */
+    public NQueensConstruction(int boardSize) {
+        this.queenPos = new int[boardSize];
+        for (int rank = 0; rank < boardSize; rank++) {
+            this.queenPos[rank] = columnAt(boardSize, rank);
+        }
+    }
+
+    /**
+     * File of the queen on a given rank, 0 indexed
+     * Even boards with N mod 6 != 2 place the even files then the odd files,
+     * other even boards use the shifted pattern. Odd boards solve N - 1 and
+     * put the last queen in the corner, which is always free for these patterns
+     *
+     * @param boardSize Length and width of the board, must be >= 4
+     * @param rank      Rank we want the queen for
+     * @return File of the queen on that rank
+     */
+    static int columnAt(int boardSize, int rank) {
+        int n = boardSize;
+        if (n % 2 == 1) {
+            if (rank == n - 1) {
+                return n - 1;
+            }
+            n--;
+        }
+
+        int half = n / 2;
+        if (n % 6 != 2) {
+            // 2, 4, 6, ... then 1, 3, 5, ... (1 indexed)
+            if (rank < half) {
+                return 2 * rank + 1;
+            }
+            return 2 * (rank - half);
+        }
+
+        // N mod 6 == 2, mirror around the middle with a shift of N/2
+        if (rank < half) {
+            return (2 * rank + half - 1) % n;
+        }
+        int i = n - 1 - rank;
+        return n - 1 - (2 * i + half - 1) % n;
+    }
+
+    /**
+     * Writes the board without ever holding it in memory
+     * Output matches Arrays.toString so it can be diffed against the other modes
+     *
+     * @param boardSize Length and width of the board, must be >= 4
+     * @param out       Where to write the queen files
+     * @throws IOException exception thrown by the writer
+     */
+    static void writeQueens(int boardSize, Writer out) throws IOException {
+        out.write('[');
+        for (int rank = 0; rank < boardSize; rank++) {
+            if (rank > 0) {
+                out.write(", ");
+            }
+            out.write(Integer.toString(columnAt(boardSize, rank)));
+        }
+        out.write("]\n");
+        out.flush();
+    }
+
+    /**
+     * O(N) check that no two queens share a file or a diagonal
+     *
+     * @param queens File of the queen on each rank
+     * @return True if no queens attack each other
+     */
+    static boolean isValid(int[] queens) {
+        int n = queens.length;
+        boolean[] files = new boolean[n];
+        boolean[] diag = new boolean[2 * n - 1];
+        boolean[] antiDiag = new boolean[2 * n - 1];
+        for (int rank = 0; rank < n; rank++) {
+            int file = queens[rank];
+            if (file < 0 || file >= n) {
+                return false;
+            }
+            int d = rank - file + n - 1;
+            int a = rank + file;
+            if (files[file] || diag[d] || antiDiag[a]) {
+                return false;
+            }
+            files[file] = true;
+            diag[d] = true;
+            antiDiag[a] = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return Array of the queen file on each rank
+     */
+    public int[] getQueenPos() {
+        return this.queenPos;
+    }
+
+    /**
+     * @return String of the current board state
+     */
+    public String getQueenPosString() {
+        return Arrays.toString(this.queenPos);
+    }
+
+    /**
+     * Should not need to use this
+     * Use nq.java instead
+     * Streams the board and checks it, prints how long it takes in ms
+     * @param args[0] Int for the dimensions of the board
+     */
+    public static void main(String args[]) throws IOException {
+        Instant startTimeObject = Instant.now();
+        Long startTime = startTimeObject.toEpochMilli();
+
+        int boardSize = Integer.parseInt(args[0]);
+        writeQueens(boardSize, new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        System.out.println("Valid: " + isValid(new NQueensConstruction(boardSize).getQueenPos()));
+
+        Instant endTimeObject = Instant.now();
+        Long endTime = (endTimeObject.toEpochMilli() - startTime);
+
+        System.out.println("Time taken: " + endTime.toString() + " ms");
+    }
+}
@@ -1,20 +1,38 @@
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Random;
+import java.util.function.BooleanSupplier;
 
 public class NQueensHillClimbing {
 
+    // most boards remembered per restart, older ones are evicted past this
+    private static final int VISITED_CAPACITY = 1 << 16;
+
     private int[] queenPos;
-    private HashSet<String> visitedList;
+    private int[] diagCount;
+    private int[] antiDiagCount;
+    // boards seen since the last restart, sideways moves skip these
+    // only hill climbing uses it, null for tabu and sa
+    private VisitedTable visited;
+    private long boardHash;
     private int error;
     private int sidewaysMoveCap;
     private int restartCap;
     private String status;
     private int seed;
     private Random rand;
+    private BooleanSupplier cancelled;
+    private SearchConfig config;
+
+    // settings for the tabu and annealing modes, hill climbing only needs the caps
+    static class SearchConfig {
+        String mode = "hc"; // hc, tabu or sa
+        int maxSteps = 100000; // step budget for tabu and sa
+        int tabuTenure = 10; // how many steps a swapped pair stays tabu
+        double startTemp = 2.0; // starting temperature for sa
+        String cooling = "geometric"; // geometric, linear or log
+        double coolingRate = 0.9999; // multiplier per step for geometric cooling
+    }
 
     /**
      * @param boardSize Size of the board
@@ -23,87 +41,197 @@ public class NQueensHillClimbing {
      * @param seed Seed for random number generation
      */
     public NQueensHillClimbing(int boardSize, int restartCap, int sidewaysMoveCap, int seed) {
-        this.visitedList = new HashSet<>();
+        this(boardSize, restartCap, sidewaysMoveCap, seed, () -> false);
+    }
+
+    /**
+     * Used by NQueensParallelHillClimbing so other threads can stop this climb
+     * 
+     * @param boardSize Size of the board
+     * @param restartCap How many times we are allowed to restart
+     * @param sidewaysMoveCap How many times we are allowed to move sideways per step
+     * @param seed Seed for random number generation
+     * @param cancelled Checked every step, the climb stops once it returns true
+     */
+    NQueensHillClimbing(int boardSize, int restartCap, int sidewaysMoveCap, int seed, BooleanSupplier cancelled) {
+        this(boardSize, restartCap, sidewaysMoveCap, seed, cancelled, new SearchConfig());
+    }
+
+    /**
+     * Tabu search or simulated annealing on the same swap moves
+     * 
+     * @param boardSize Size of the board
+     * @param config Which search to run and its settings
+     * @param seed Seed for random number generation
+     */
+    public NQueensHillClimbing(int boardSize, SearchConfig config, int seed) {
+        this(boardSize, 0, 0, seed, () -> false, config);
+    }
+
+    private NQueensHillClimbing(int boardSize, int restartCap, int sidewaysMoveCap, int seed,
+            BooleanSupplier cancelled, SearchConfig config) {
+        this.cancelled = cancelled;
+        this.config = config;
+        if (config.mode.equals("hc")) {
+            this.visited = new VisitedTable(visitedCapacity(boardSize, sidewaysMoveCap), seed);
+        }
         this.restartCap = restartCap;
         this.sidewaysMoveCap = sidewaysMoveCap;
         this.status = "";
         this.seed = seed;
         this.rand = new Random(seed);
-        ArrayList<Integer> initialState = new ArrayList<>();
-        for (int i = 0; i < boardSize; i++) {
-            initialState.add(i);
+        this.queenPos = new int[boardSize];
+        this.shuffleBoard(new Random(seed));
+        this.diagCount = new int[2 * boardSize - 1];
+        this.antiDiagCount = new int[2 * boardSize - 1];
+        this.error = this.errorFunction();
+        if (this.visited != null) {
+            this.visited.add(this.boardHash);
         }
-        Collections.shuffle(initialState, new Random(seed));
-        this.queenPos = initialState.stream().mapToInt(Integer::valueOf).toArray();
-        this.visitedList.add(stateKey(this.queenPos));
-        this.error = this.errorFunction(this.queenPos);
 
-        this.solve();
+        if (config.mode.equals("tabu")) {
+            this.solveTabu();
+        } else if (config.mode.equals("sa")) {
+            this.solveAnnealing();
+        } else {
+            this.solve();
+        }
     }
 
     /**
-     * @param queens Current state of the board
-     * @return Board state as a string
-     * Java HashSets do not properly recognize identical arrays
-     * Must be converted to strings first
+     * Error starts under 2N and every move that doesn't lower it is sideways, so
+     * a restart adds at most 2N * (sidewaysMoveCap + 1) boards. The table gets
+     * twice that, so probe windows rarely fill, up to VISITED_CAPACITY
+     *
+     * @param boardSize Size of the board
+     * @param sidewaysMoveCap How many times we are allowed to move sideways per step
+     * @return Capacity to give the VisitedTable
      */
-    private String stateKey(int[] queens) {
-        StringBuilder sb = new StringBuilder();
-        for (int v : queens)
-            sb.append(v).append(",");
-        return sb.toString();
+    private static int visitedCapacity(int boardSize, int sidewaysMoveCap) {
+        long boards = 2L * boardSize * ((long) Math.max(sidewaysMoveCap, 0) + 1);
+        return (int) Math.min(2 * boards, VISITED_CAPACITY);
     }
 
     /**
-     * @param queens Board state to check
-     * @return Number of queens attacking each other
+     * Resets queenPos to a random permutation in place
+     * Same swaps as Collections.shuffle so seeds give the same boards as before
+     * 
+     * @param shuffleRand Random to shuffle with
      */
-    private int errorFunction(int[] queens) {
+    private void shuffleBoard(Random shuffleRand) {
+        for (int i = 0; i < this.queenPos.length; i++) {
+            this.queenPos[i] = i;
+        }
+        for (int i = this.queenPos.length; i > 1; i--) {
+            int j = shuffleRand.nextInt(i);
+            int temp = this.queenPos[i - 1];
+            this.queenPos[i - 1] = this.queenPos[j];
+            this.queenPos[j] = temp;
+        }
+    }
+
+    /**
+     * Rebuilds the diagonal counters and board hash from queenPos
+     * Only needed on a new board, moves keep them up to date
+     * 
+     * @return Number of queens attacked along each diagonal (a diagonal holding
+     *         k queens adds k - 1)
+     */
+    private int errorFunction() {
+        Arrays.fill(this.diagCount, 0);
+        Arrays.fill(this.antiDiagCount, 0);
+        this.boardHash = (this.visited != null) ? this.visited.hash(this.queenPos) : 0;
         int totalAttacked = 0;
-        for (int i = 0; i < queens.length; i++) {
-            if (!isSafe(i, queens[i], queens)) {
-                totalAttacked++;
-            }
+        for (int i = 0; i < this.queenPos.length; i++) {
+            totalAttacked += this.addQueen(i, this.queenPos[i]);
         }
         return totalAttacked;
     }
 
     /**
-     * @param rank Rank of the square we want to check
-     * @param file File of the square we want to check
-     * @param queens Board state we use to check
-     * @return Whether or not the square is under attack
+     * Queens are one per rank and one per file, so only diagonals can clash
+     * 
+     * @param rank Rank of the queen
+     * @param file File of the queen
+     * @return Change in error from adding the queen
      */
-    private boolean isSafe(int rank, int file, int[] queens) {
-        for (int i = 0; i < rank; i++) {
+    private int addQueen(int rank, int file) {
+        int delta = 0;
+        if (this.diagCount[rank - file + this.queenPos.length - 1]++ > 0) {
+            delta++;
+        }
+        if (this.antiDiagCount[rank + file]++ > 0) {
+            delta++;
+        }
+        return delta;
+    }
 
-            // check diagonal only
-            if (Math.abs(rank - i) == Math.abs(file - queens[i])) {
-                return false;
-            }
+    /**
+     * @param rank Rank of the queen
+     * @param file File of the queen
+     * @return Change in error from removing the queen
+     */
+    private int removeQueen(int rank, int file) {
+        int delta = 0;
+        if (--this.diagCount[rank - file + this.queenPos.length - 1] > 0) {
+            delta--;
         }
-        return true;
+        if (--this.antiDiagCount[rank + file] > 0) {
+            delta--;
+        }
+        return delta;
     }
 
     /**
-     * @return ArrayList of all neighbors of the current state
+     * @param i First rank
+     * @param j Second rank
+     * @return Hash the board would have after swapping the two ranks
      */
-    private ArrayList<int[]> getNeighbors() {
-        ArrayList<int[]> neighbors = new ArrayList<int[]>();
-        int n = queenPos.length;
+    private long swapHash(int i, int j) {
+        int a = this.queenPos[i];
+        int b = this.queenPos[j];
+        return this.boardHash ^ this.visited.key(i, a) ^ this.visited.key(j, b)
+                ^ this.visited.key(i, b) ^ this.visited.key(j, a);
+    }
 
-        for (int i = 0; i < n; i++) {
-            for (int j = i + 1; j < n; j++) {
-                // copy state
-                int[] neighbor = queenPos.clone();
-                // swap queens at i and j
-                int temp = neighbor[i];
-                neighbor[i] = neighbor[j];
-                neighbor[j] = temp;
-                neighbors.add(neighbor);
-            }
+    /**
+     * Swaps the queens on two ranks, keeping the counters and hash in step
+     * 
+     * @param i First rank
+     * @param j Second rank
+     * @return Change in error from the swap
+     */
+    private int swapQueens(int i, int j) {
+        int a = this.queenPos[i];
+        int b = this.queenPos[j];
+        int delta = this.removeQueen(i, a) + this.removeQueen(j, b);
+        delta += this.addQueen(i, b) + this.addQueen(j, a);
+        if (this.visited != null) {
+            this.boardHash ^= this.visited.key(i, a) ^ this.visited.key(j, b)
+                    ^ this.visited.key(i, b) ^ this.visited.key(j, a);
         }
-        return neighbors;
+        this.queenPos[i] = b;
+        this.queenPos[j] = a;
+        return delta;
+    }
+
+    /**
+     * O(1) error change of swapping two ranks, the board is left as it was
+     * 
+     * @param i First rank
+     * @param j Second rank
+     * @return Change in error the swap would cause
+     */
+    private int swapDelta(int i, int j) {
+        int a = this.queenPos[i];
+        int b = this.queenPos[j];
+        int delta = this.removeQueen(i, a) + this.removeQueen(j, b);
+        delta += this.addQueen(i, b) + this.addQueen(j, a);
+        this.removeQueen(i, b);
+        this.removeQueen(j, a);
+        this.addQueen(i, a);
+        this.addQueen(j, b);
+        return delta;
     }
 
     /**
@@ -113,68 +241,186 @@ public class NQueensHillClimbing {
         boolean move = true;
         int sidewaysMoves = 0;
         int timesRestarted = 0;
-        while (move && error > 0 && timesRestarted < this.restartCap) {
+        while (move && error > 0 && timesRestarted < this.restartCap && !this.cancelled.getAsBoolean()) {
             move = false;
 
-            ArrayList<int[]> neighbors = this.getNeighbors();
-            int bestError = this.error;
-            int[] bestState = this.queenPos;
-            ArrayList<int[]> bestNeighbors = new ArrayList<>();
+            int n = this.queenPos.length;
+            int bestDelta = 1;
+            int bestI = -1;
+            int bestJ = -1;
 
-            // find the best state and error value
-            for (int[] neighbor : neighbors) {
-                int neighborError = this.errorFunction(neighbor);
+            // a neighbor swaps the queens on ranks i and j, each one is applied,
+            // scored and undone in place so no boards are copied
+            // keeps the first pair with the lowest error, which is also the first
+            // sideways move when nothing improves
+            // error never goes up, so only sideways moves can revisit a board
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    int delta = this.swapDelta(i, j);
 
-                if (neighborError < bestError) {
-                    bestError = neighborError;
-                    bestState = neighbor;
-                }
-            }
-            // collect potential sideways moves
-            for (int[] neighbor : neighbors) {
-                int neighborError = this.errorFunction(neighbor);
-                if (neighborError == bestError) {
-                    bestNeighbors.add(neighbor);
+                    if (delta < bestDelta && (delta < 0 || !this.visited.contains(this.swapHash(i, j)))) {
+                        bestDelta = delta;
+                        bestI = i;
+                        bestJ = j;
+                    }
                 }
             }
             // move to better state
-            if (bestError < this.error) {
-                this.queenPos = bestState;
-                this.error = bestError;
+            if (bestDelta < 0) {
+                this.error += this.swapQueens(bestI, bestJ);
 
-                this.visitedList.add(stateKey(queenPos));
+                this.visited.add(this.boardHash);
                 move = true;
                 sidewaysMoves = 0;
             }
 
             // Sideways move
-            else if (bestError == error &&
-                    sidewaysMoves < this.sidewaysMoveCap
-                    && bestNeighbors.size() > 0) {
+            else if (bestDelta == 0 &&
+                    sidewaysMoves < this.sidewaysMoveCap) {
 
-                this.queenPos = bestNeighbors.get(0).clone();
-                this.error = bestError;
+                this.error += this.swapQueens(bestI, bestJ);
+                this.visited.add(this.boardHash);
                 sidewaysMoves++;
                 move = true;
             }
 
             // if we need to restart
             else if (!move) {
-                ArrayList<Integer> initialState = new ArrayList<>();
-                for (int i = 0; i < queenPos.length; i++) {
-                    initialState.add(i);
-                }
                 this.seed = rand.nextInt();
-                Collections.shuffle(initialState, new Random(this.seed));
-                this.queenPos = initialState.stream().mapToInt(Integer::valueOf).toArray();
+                this.shuffleBoard(new Random(this.seed));
                 timesRestarted++;
                 sidewaysMoves = 0;
-                this.visitedList.clear();
-                this.error = this.errorFunction(this.queenPos);
+                this.visited.clear();
+                this.error = this.errorFunction();
+                this.visited.add(this.boardHash);
                 move = true;
             }
         }
 
+        this.setStatus();
+    }
+
+    /**
+     * @param rank Rank of the queen to check
+     * @return True if another queen shares one of its diagonals
+     */
+    private boolean isAttacked(int rank) {
+        int file = this.queenPos[rank];
+        return this.diagCount[rank - file + this.queenPos.length - 1] > 1 || this.antiDiagCount[rank + file] > 1;
+    }
+
+    /**
+     * Tabu search
+     * Every step takes the best swap that moves an attacked queen, even if it
+     * makes things worse, but recently swapped pairs are off limits unless
+     * they beat the best error seen so far
+     */
+    private void solveTabu() {
+        int n = this.queenPos.length;
+        int tenure = Math.max(1, this.config.tabuTenure);
+        // step at which swapping pair i < j stops being tabu, at i * n + j
+        int[] tabuUntil = new int[n * n];
+        int bestEver = this.error;
+        int steps = 0;
+
+        while (this.error > 0 && steps < this.config.maxSteps) {
+            int bestDelta = Integer.MAX_VALUE;
+            int bestI = -1;
+            int bestJ = -1;
+            int ties = 0;
+
+            for (int i = 0; i < n; i++) {
+                boolean attacked = this.isAttacked(i);
+                for (int j = i + 1; j < n; j++) {
+                    // swaps between two safe queens can't lower the error
+                    if (!attacked && !this.isAttacked(j)) {
+                        continue;
+                    }
+                    int delta = this.swapDelta(i, j);
+                    if (delta > bestDelta) {
+                        continue;
+                    }
+                    boolean tabu = steps < tabuUntil[i * n + j];
+                    // aspiration, a tabu move is fine if it beats everything so far
+                    if (tabu && this.error + delta >= bestEver) {
+                        continue;
+                    }
+                    if (delta < bestDelta) {
+                        bestDelta = delta;
+                        bestI = i;
+                        bestJ = j;
+                        ties = 1;
+                    } else if (this.rand.nextInt(++ties) == 0) {
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
+            }
+
+            if (bestI < 0) {
+                // every move is tabu, wait for the oldest pair to expire
+                steps++;
+                continue;
+            }
+
+            this.error += this.swapQueens(bestI, bestJ);
+            tabuUntil[bestI * n + bestJ] = steps + tenure;
+            bestEver = Math.min(bestEver, this.error);
+            steps++;
+        }
+
+        this.setStatus();
+    }
+
+    /**
+     * Simulated annealing
+     * Tries a random swap every step, always takes it if it does not make
+     * things worse and otherwise takes it with probability e^(-delta / T)
+     */
+    private void solveAnnealing() {
+        int n = this.queenPos.length;
+        double temp = this.config.startTemp;
+        int steps = 0;
+
+        while (this.error > 0 && steps < this.config.maxSteps) {
+            int i = this.rand.nextInt(n);
+            int j = this.rand.nextInt(n - 1);
+            if (j >= i) {
+                j++;
+            }
+
+            int delta = this.swapDelta(i, j);
+            if (delta <= 0 || (temp > 0 && this.rand.nextDouble() < Math.exp(-delta / temp))) {
+                this.error += this.swapQueens(i, j);
+            }
+
+            steps++;
+            temp = this.temperature(steps, temp);
+        }
+
+        this.setStatus();
+    }
+
+    /**
+     * @param step Number of steps taken so far
+     * @param temp Current temperature
+     * @return Temperature for the next step under the configured schedule
+     */
+    private double temperature(int step, double temp) {
+        switch (this.config.cooling) {
+            case "linear":
+                return this.config.startTemp * (1.0 - (double) step / this.config.maxSteps);
+            case "log":
+                return this.config.startTemp / Math.log(step + Math.E);
+            default:
+                return temp * this.config.coolingRate;
+        }
+    }
+
+    /**
+     * Sets the status string from the final error
+     */
+    private void setStatus() {
         if (this.error == 0) {
             this.status = "Found valid solution";
         } else {
@@ -189,6 +435,13 @@ public class NQueensHillClimbing {
         return Arrays.toString(this.queenPos);
     }
 
+    /**
+     * @return True if the board has no queens attacking each other
+     */
+    public boolean isSolved() {
+        return this.error == 0;
+    }
+
     /**
      * @return String of the status given by solve
      */
@@ -0,0 +1,244 @@
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+
+public class NQueensMinConflicts {
+
+    // random files tried per rank before the greedy start gives up on a free one
+    private static final int GREEDY_TRIES = 256;
+
+    private int[] queenPos;
+    private int[] fileCount;
+    private int[] diagCount;
+    private int[] antiDiagCount;
+    private int[] candidates;
+    private boolean[] isCandidate;
+    private int candidateCount;
+    private int maxSteps;
+    private int steps;
+    private String status;
+    private Random rand;
+
+    /**
+     * Min-conflicts local search
+     * Every step takes a random attacked queen and moves it along its rank to
+     * the file with the fewest attackers. Counters per file and diagonal keep
+     * each check O(1), memory stays at a few int[] of size N
+     *
+     * @param boardSize Size of the board
+     * @param maxSteps  How many repair steps we are allowed
+     * @param seed      Seed for random number generation
+     */
+    public NQueensMinConflicts(int boardSize, int maxSteps, int seed) {
+        this.queenPos = new int[boardSize];
+        this.fileCount = new int[boardSize];
+        this.diagCount = new int[2 * boardSize - 1];
+        this.antiDiagCount = new int[2 * boardSize - 1];
+        this.maxSteps = maxSteps;
+        this.steps = 0;
+        this.status = "";
+        this.rand = new Random(seed);
+
+        this.greedyStart();
+        this.solve();
+    }
+
+    /**
+     * Builds a permutation rank by rank, trying a few of the unused files for
+     * one with free diagonals before settling for a random one
+     * Leaves only a handful of attacked queens even for huge boards
+     */
+    private void greedyStart() {
+        int n = this.queenPos.length;
+        for (int i = 0; i < n; i++) {
+            this.queenPos[i] = i;
+        }
+
+        for (int rank = 0; rank < n; rank++) {
+            // files at rank..n-1 are the ones not used yet
+            int pick = rank + this.rand.nextInt(n - rank);
+            for (int t = 1; t < GREEDY_TRIES; t++) {
+                int file = this.queenPos[pick];
+                if (this.diagCount[rank - file + n - 1] == 0 && this.antiDiagCount[rank + file] == 0) {
+                    break;
+                }
+                pick = rank + this.rand.nextInt(n - rank);
+            }
+            int temp = this.queenPos[rank];
+            this.queenPos[rank] = this.queenPos[pick];
+            this.queenPos[pick] = temp;
+            this.placeQueen(rank, this.queenPos[rank], 1);
+        }
+    }
+
+    /**
+     * @param rank   Rank of the queen
+     * @param file   File of the queen
+     * @param change 1 to add the queen to the counters, -1 to remove it
+     */
+    private void placeQueen(int rank, int file, int change) {
+        this.fileCount[file] += change;
+        this.diagCount[rank - file + this.queenPos.length - 1] += change;
+        this.antiDiagCount[rank + file] += change;
+    }
+
+    /**
+     * @param rank Rank of the queen to check
+     * @return Number of other queens attacking it
+     */
+    private int attackers(int rank) {
+        int n = this.queenPos.length;
+        int file = this.queenPos[rank];
+        // the queen itself is counted once in each of the three counters
+        return this.fileCount[file] + this.diagCount[rank - file + n - 1] + this.antiDiagCount[rank + file] - 3;
+    }
+
+    /**
+     * Fills the list of attacked ranks we pick from
+     * Ranks are added again when a move attacks them and dropped lazily once
+     * nothing attacks them, so an empty list means the board is solved
+     */
+    private void collectCandidates() {
+        this.candidates = new int[this.queenPos.length];
+        this.isCandidate = new boolean[this.queenPos.length];
+        this.candidateCount = 0;
+        for (int rank = 0; rank < this.queenPos.length; rank++) {
+            if (this.attackers(rank) > 0) {
+                this.addCandidate(rank);
+            }
+        }
+    }
+
+    /**
+     * @param rank Rank to add to the list if it is not already on it
+     */
+    private void addCandidate(int rank) {
+        if (!this.isCandidate[rank]) {
+            this.isCandidate[rank] = true;
+            this.candidates[this.candidateCount++] = rank;
+        }
+    }
+
+    /**
+     * Adds every queen that attacks the queen on the given rank
+     *
+     * @param rank Rank of the queen that just moved
+     */
+    private void addAttackedBy(int rank) {
+        int file = this.queenPos[rank];
+        for (int other = 0; other < this.queenPos.length; other++) {
+            int otherFile = this.queenPos[other];
+            if (other != rank && (otherFile == file || Math.abs(other - rank) == Math.abs(otherFile - file))) {
+                this.addCandidate(other);
+            }
+        }
+    }
+
+    /**
+     * @return A random attacked rank, or -1 if the board is solved
+     */
+    private int pickConflictedRank() {
+        while (this.candidateCount > 0) {
+            int k = this.rand.nextInt(this.candidateCount);
+            int rank = this.candidates[k];
+            if (this.attackers(rank) > 0) {
+                return rank;
+            }
+            // no longer attacked, drop it
+            this.isCandidate[rank] = false;
+            this.candidates[k] = this.candidates[--this.candidateCount];
+        }
+        return -1;
+    }
+
+    /**
+     * Solves the board
+     */
+    private void solve() {
+        int n = this.queenPos.length;
+        this.collectCandidates();
+        int rank = this.pickConflictedRank();
+        while (rank >= 0 && this.steps < this.maxSteps) {
+            int current = this.queenPos[rank];
+            this.placeQueen(rank, current, -1);
+
+            // least attacked file on this rank, ties broken at random
+            int bestFile = current;
+            int bestConflicts = Integer.MAX_VALUE;
+            int ties = 0;
+            for (int file = 0; file < n; file++) {
+                int c = this.fileCount[file] + this.diagCount[rank - file + n - 1] + this.antiDiagCount[rank + file];
+                if (c < bestConflicts) {
+                    bestConflicts = c;
+                    bestFile = file;
+                    ties = 1;
+                } else if (c == bestConflicts) {
+                    ties++;
+                    if (this.rand.nextInt(ties) == 0) {
+                        bestFile = file;
+                    }
+                }
+            }
+
+            this.queenPos[rank] = bestFile;
+            this.placeQueen(rank, bestFile, 1);
+            if (bestConflicts > 0) {
+                this.addAttackedBy(rank);
+            }
+            this.steps++;
+            rank = this.pickConflictedRank();
+        }
+
+        if (rank < 0) {
+            this.status = "Found valid solution in " + this.steps + " steps";
+        } else {
+            this.status = "Stuck after " + this.steps + " steps";
+        }
+    }
+
+    /**
+     * @return Array of the queen file on each rank
+     */
+    public int[] getQueenPos() {
+        return this.queenPos;
+    }
+
+    /**
+     * @return String of the current board state
+     */
+    public String getQueenPosString() {
+        return Arrays.toString(this.queenPos);
+    }
+
+    /**
+     * @return String of the status given by solve
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Should not need to use this
+     * Use nq.java instead
+     * @param args[0] Int for the board size
+     * @param args[1] Int for the number of repair steps allowed
+     */
+    public static void main(String args[]) {
+        Instant startTimeObject = Instant.now();
+        Long startTime = startTimeObject.toEpochMilli();
+
+        int boardSize = Integer.parseInt(args[0]);
+        int maxSteps = 100000;
+        if (args.length >= 2) {
+            maxSteps = Integer.parseInt(args[1]);
+        }
+
+        NQueensMinConflicts queens = new NQueensMinConflicts(boardSize, maxSteps, 1);
+
+        Instant endTimeObject = Instant.now();
+        Long endTime = (endTimeObject.toEpochMilli() - startTime);
+
+        System.out.println("Time taken: " + endTime.toString() + " ms");
+        System.out.println(queens.getStatus());
+    }
+}
@@ -0,0 +1,194 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class NQueensParallel {
+
+    private int boardSize;
+    private int threads;
+    private long solutionCount;
+    private String status;
+
+    /**
+     * Counts every solution by splitting the bitmask search from NQueensBitboard
+     * across a ForkJoinPool
+     * The first rank only tries the left half of the board, mirrored boards are
+     * counted by doubling
+     *
+     * @param boardSize Length and width of the board (at most 64)
+     * @param threads   Number of worker threads to use
+     */
+    public NQueensParallel(int boardSize, int threads) {
+        this.boardSize = boardSize;
+        this.threads = threads;
+        this.solutionCount = 0;
+        this.status = "";
+
+        this.solve();
+    }
+
+    /**
+     * Counts the board on a dedicated pool so the thread count is honored
+     */
+    private void solve() {
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            this.solutionCount = pool.invoke(new FirstRankTask(this.boardSize));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (this.solutionCount == 0) {
+            this.status = "No solution";
+        } else {
+            this.status = "Found " + this.solutionCount + " solutions";
+        }
+    }
+
+    /**
+     * Root task, one subtask per file on the first rank
+     * Files left of center are doubled for their mirror image, the center
+     * file of an odd board is its own mirror so it is counted once
+     */
+    private static class FirstRankTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int boardSize;
+
+        FirstRankTask(int boardSize) {
+            this.boardSize = boardSize;
+        }
+
+        @Override
+        protected Long compute() {
+            long full = NQueensBitboard.fullMask(this.boardSize);
+            int half = this.boardSize / 2;
+
+            ArrayList<SecondRankTask> mirrored = new ArrayList<>();
+            for (int file = 0; file < half; file++) {
+                mirrored.add(new SecondRankTask(full, 1L << file));
+            }
+            SecondRankTask center = null;
+            if (this.boardSize % 2 == 1) {
+                center = new SecondRankTask(full, 1L << half);
+            }
+
+            invokeAll(mirrored);
+            if (center != null) {
+                center.fork();
+            }
+
+            // each task holds its own total, summing on join needs no locking
+            long total = 0;
+            for (SecondRankTask task : mirrored) {
+                total += task.join();
+            }
+            total *= 2;
+            if (center != null) {
+                total += center.join();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * One queen fixed on the first rank, forks one leaf per open square on the
+     * second rank
+     */
+    private static class SecondRankTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final long full;
+        private final long bit;
+
+        SecondRankTask(long full, long bit) {
+            this.full = full;
+            this.bit = bit;
+        }
+
+        @Override
+        protected Long compute() {
+            long cols = this.bit;
+            long left = (this.bit << 1) & this.full;
+            long right = this.bit >>> 1;
+
+            ArrayList<LeafTask> leaves = new ArrayList<>();
+            long avail = ~(cols | left | right) & this.full;
+            while (avail != 0) {
+                long next = avail & -avail;
+                avail ^= next;
+                leaves.add(new LeafTask(this.full, cols | next, ((left | next) << 1) & this.full,
+                        (right | next) >>> 1));
+            }
+
+            invokeAll(leaves);
+            long total = 0;
+            for (LeafTask leaf : leaves) {
+                total += leaf.join();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Two queens placed, the rest of the subtree is counted sequentially
+     */
+    private static class LeafTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final long full;
+        private final long cols;
+        private final long left;
+        private final long right;
+
+        LeafTask(long full, long cols, long left, long right) {
+            this.full = full;
+            this.cols = cols;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        protected Long compute() {
+            return NQueensBitboard.countSolutions(this.full, this.cols, this.left, this.right);
+        }
+    }
+
+    /**
+     * @return Number of solutions for the board
+     */
+    public long getSolutionCount() {
+        return this.solutionCount;
+    }
+
+    /**
+     * @return String of the status given by solve
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Should not need to use this
+     * Use nq.java instead
+     * @param args[0] Int for the dimensions of the board
+     * @param args[1] Optional int for the number of threads, defaults to all cores
+     */
+    public static void main(String args[]) {
+        Instant startTimeObject = Instant.now();
+        Long startTime = startTimeObject.toEpochMilli();
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length >= 2) {
+            threads = Integer.parseInt(args[1]);
+        }
+        NQueensParallel queens = new NQueensParallel(Integer.parseInt(args[0]), threads);
+        System.out.println(queens.getStatus());
+
+        Instant endTimeObject = Instant.now();
+        Long endTime = (endTimeObject.toEpochMilli() - startTime);
+
+        System.out.println("Time taken: " + endTime.toString() + " ms");
+    }
+}
@@ -0,0 +1,166 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NQueensParallelHillClimbing {
+
+    private int boardSize;
+    private int restartCap;
+    private int sidewaysMoveCap;
+    private int threads;
+    private String queenPosString;
+    private String status;
+
+    /**
+     * Runs the restarts of NQueensHillClimbing on several threads at once
+     * Climb k of worker w is attempt number k * threads + w. Once an attempt
+     * solves the board every later attempt is cancelled, earlier ones keep
+     * going, so the answer is always the lowest solving attempt and the same
+     * seed and thread count give the same board every run
+     *
+     * @param boardSize       Size of the board
+     * @param restartCap      How many climbs we are allowed in total
+     * @param sidewaysMoveCap How many times we are allowed to move sideways per step
+     * @param seed            Seed for random number generation
+     * @param threads         Number of climbs to run at once
+     */
+    public NQueensParallelHillClimbing(int boardSize, int restartCap, int sidewaysMoveCap, int seed,
+            int threads) {
+        this.boardSize = boardSize;
+        this.restartCap = restartCap;
+        this.sidewaysMoveCap = sidewaysMoveCap;
+        this.threads = threads;
+        this.queenPosString = "";
+        this.status = "";
+
+        this.solve(seed);
+    }
+
+    // Best solved attempt of one worker
+    private static class WorkerResult {
+        long attempt = Long.MAX_VALUE;
+        NQueensHillClimbing climb;
+    }
+
+    /**
+     * Starts one worker per thread and keeps the lowest solving attempt
+     *
+     * @param seed Seed for random number generation
+     */
+    private void solve(int seed) {
+        // split in worker order so each worker's seeds only depend on seed and threads
+        SplittableRandom root = new SplittableRandom(seed);
+        AtomicLong firstSolved = new AtomicLong(Long.MAX_VALUE);
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        ArrayList<Future<WorkerResult>> futures = new ArrayList<>();
+        for (int w = 0; w < this.threads; w++) {
+            SplittableRandom workerRand = root.split();
+            int worker = w;
+            futures.add(pool.submit(() -> this.runWorker(worker, workerRand, firstSolved)));
+        }
+
+        WorkerResult best = null;
+        try {
+            for (Future<WorkerResult> future : futures) {
+                WorkerResult result = future.get();
+                if (result.climb != null && (best == null || result.attempt < best.attempt)) {
+                    best = result;
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Hill climbing worker failed", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (best != null) {
+            this.queenPosString = best.climb.getQueenPosString();
+            this.status = "Found valid solution on attempt " + (best.attempt + 1);
+        } else {
+            this.status = "No solution after " + this.restartCap + " attempts";
+        }
+    }
+
+    /**
+     * @param worker      Index of this worker
+     * @param workerRand  This worker's own split of the seed
+     * @param firstSolved Lowest attempt number that has solved the board so far
+     * @return This worker's lowest solving attempt, if any
+     */
+    private WorkerResult runWorker(int worker, SplittableRandom workerRand, AtomicLong firstSolved) {
+        WorkerResult result = new WorkerResult();
+        for (long attempt = worker; attempt < this.restartCap; attempt += this.threads) {
+            if (attempt > firstSolved.get()) {
+                break;
+            }
+            long current = attempt;
+            // restartCap of 1 is a single climb until it gets stuck
+            NQueensHillClimbing climb = new NQueensHillClimbing(this.boardSize, 1, this.sidewaysMoveCap,
+                    workerRand.nextInt(), () -> current > firstSolved.get());
+            if (climb.isSolved()) {
+                firstSolved.accumulateAndGet(current, Math::min);
+                result.attempt = current;
+                result.climb = climb;
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return String of the solved board, empty if no attempt solved it
+     */
+    public String getQueenPosString() {
+        return this.queenPosString;
+    }
+
+    /**
+     * @return String of the status given by solve
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Should not need to use this
+     * Use nq.java instead
+     * @param args[0] Int for the board size
+     * @param args[1] Int for the number of climbs allowed
+     * @param args[2] Int for the number of permitted sideways moves per step
+     * @param args[3] Int for the number of threads
+     */
+    public static void main(String args[]) {
+        Instant startTimeObject = Instant.now();
+        Long startTime = startTimeObject.toEpochMilli();
+
+        int boardSize = Integer.parseInt(args[0]);
+        int restartCap = 5;
+        int sidewaysMoveCap = 5;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length >= 2) {
+            restartCap = Integer.parseInt(args[1]);
+        }
+        if (args.length >= 3) {
+            sidewaysMoveCap = Integer.parseInt(args[2]);
+        }
+        if (args.length >= 4) {
+            threads = Integer.parseInt(args[3]);
+        }
+
+        NQueensParallelHillClimbing queens = new NQueensParallelHillClimbing(boardSize, restartCap,
+                sidewaysMoveCap, 10, threads);
+
+        Instant endTimeObject = Instant.now();
+        Long endTime = (endTimeObject.toEpochMilli() - startTime);
+
+        System.out.println("Time taken: " + endTime.toString() + " ms");
+        System.out.println(queens.getStatus());
+        System.out.println(queens.getQueenPosString());
+    }
+}
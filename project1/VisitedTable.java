@@ -0,0 +1,117 @@
+import java.util.Arrays;
+
+/*
+Fixed size set of board hashes for the hill climber
+Boards are hashed Zobrist style, the XOR of one key per (rank, file), so a swap
+updates the hash in O(1). Hashes live in a long[] with open addressing and a
+short probe window, when the window is full an old entry is evicted, so memory
+never grows no matter how long the climb runs
+*/
+public class VisitedTable {
+
+    // slots checked per lookup before giving up or evicting
+    private static final int PROBES = 8;
+    // 0 marks an empty slot, so a real hash of 0 is stored as this instead
+    private static final long ZERO_HASH = 0x9E3779B97F4A7C15L;
+
+    private long[] slots;
+    private int mask;
+    private int evictCursor;
+    private long salt;
+
+    /**
+     * @param capacity Number of hashes to hold, rounded up to a power of two
+     * @param seed     Seed mixed into the Zobrist keys
+     */
+    public VisitedTable(int capacity, long seed) {
+        int size = Integer.highestOneBit(Math.max(PROBES, capacity - 1)) << 1;
+        this.slots = new long[size];
+        this.mask = size - 1;
+        this.evictCursor = 0;
+        this.salt = mix(seed);
+    }
+
+    /**
+     * Zobrist key of a queen, computed on the fly so there is no N^2 key table
+     *
+     * @param rank Rank of the queen
+     * @param file File of the queen
+     * @return 64 bit key for the square
+     */
+    public long key(int rank, int file) {
+        return mix(this.salt + (((long) rank << 32) | file));
+    }
+
+    /**
+     * @param queens File of the queen on each rank
+     * @return Zobrist hash of the whole board
+     */
+    public long hash(int[] queens) {
+        long h = 0;
+        for (int i = 0; i < queens.length; i++) {
+            h ^= key(i, queens[i]);
+        }
+        return h;
+    }
+
+    /**
+     * @param hash Board hash to look for
+     * @return True if the board is still in the table
+     */
+    public boolean contains(long hash) {
+        long h = hash == 0 ? ZERO_HASH : hash;
+        int home = (int) (h ^ (h >>> 32)) & this.mask;
+        for (int p = 0; p < PROBES; p++) {
+            long slot = this.slots[(home + p) & this.mask];
+            if (slot == h) {
+                return true;
+            }
+            if (slot == 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a board hash, evicting an older one if its probe window is full
+     *
+     * @param hash Board hash to add
+     */
+    public void add(long hash) {
+        long h = hash == 0 ? ZERO_HASH : hash;
+        int home = (int) (h ^ (h >>> 32)) & this.mask;
+        for (int p = 0; p < PROBES; p++) {
+            int index = (home + p) & this.mask;
+            if (this.slots[index] == h) {
+                return;
+            }
+            if (this.slots[index] == 0) {
+                this.slots[index] = h;
+                return;
+            }
+        }
+        // window full, rotate which slot gets replaced
+        this.slots[(home + this.evictCursor) & this.mask] = h;
+        this.evictCursor = (this.evictCursor + 1) % PROBES;
+    }
+
+    /**
+     * Empties the table without reallocating it
+     */
+    public void clear() {
+        Arrays.fill(this.slots, 0L);
+    }
+
+    /**
+     * SplitMix64 finalizer
+     *
+     * @param z Value to scramble
+     * @return Well mixed 64 bit value
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,10 +1,17 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
 public class nq {
-    public static void main(String args[]) {
+    public static void main(String args[]) throws IOException {
         String mode = "";
         int N = 0;
         int seed = 1;
         int restarts = 0;
         int sideways = 0;
+        int steps = 100000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        NQueensHillClimbing.SearchConfig search = new NQueensHillClimbing.SearchConfig();
 
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
@@ -70,6 +77,79 @@ public class nq {
                         return;
                     }
                     break;
+                case "-steps":
+                    try {
+                        if (i + 1 < args.length) {
+                            steps = Integer.parseInt(args[++i]);
+                        } else {
+                            System.err.println("Error: Missing value for -steps");
+                            return;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Invalid value for -steps: " + args[i]);
+                        return;
+                    }
+                    break;
+                case "-tenure":
+                    try {
+                        if (i + 1 < args.length) {
+                            search.tabuTenure = Integer.parseInt(args[++i]);
+                        } else {
+                            System.err.println("Error: Missing value for -tenure");
+                            return;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Invalid value for -tenure: " + args[i]);
+                        return;
+                    }
+                    break;
+                case "-temp":
+                    try {
+                        if (i + 1 < args.length) {
+                            search.startTemp = Double.parseDouble(args[++i]);
+                        } else {
+                            System.err.println("Error: Missing value for -temp");
+                            return;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Invalid value for -temp: " + args[i]);
+                        return;
+                    }
+                    break;
+                case "-alpha":
+                    try {
+                        if (i + 1 < args.length) {
+                            search.coolingRate = Double.parseDouble(args[++i]);
+                        } else {
+                            System.err.println("Error: Missing value for -alpha");
+                            return;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Invalid value for -alpha: " + args[i]);
+                        return;
+                    }
+                    break;
+                case "-cooling":
+                    if (i + 1 < args.length) {
+                        search.cooling = args[++i].toLowerCase();
+                    } else {
+                        System.err.println("Error: Missing value for -cooling");
+                        return;
+                    }
+                    break;
+                case "-threads":
+                    try {
+                        if (i + 1 < args.length) {
+                            threads = Integer.parseInt(args[++i]);
+                        } else {
+                            System.err.println("Error: Missing value for -threads");
+                            return;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Invalid value for -threads: " + args[i]);
+                        return;
+                    }
+                    break;
                 default:
                     System.err.println("Unknown argument: " + args[i]);
                     return;
@@ -81,8 +161,24 @@ public class nq {
             System.err.println("Error: N must be >= 4");
             return;
         }
-        if (!mode.equals("dfs") && !mode.equals("hc")) {
-            System.err.println("Error: -mode must be either 'dfs' or 'hc'");
+        if (!mode.equals("dfs") && !mode.equals("hc") && !mode.equals("bit") && !mode.equals("count")
+                && !mode.equals("pcount") && !mode.equals("construct") && !mode.equals("mc")
+                && !mode.equals("phc") && !mode.equals("tabu") && !mode.equals("sa")) {
+            System.err.println("Error: -mode must be one of 'dfs', 'hc', 'phc', 'tabu', 'sa', 'bit', 'count', "
+                    + "'pcount', 'construct' or 'mc'");
+            return;
+        }
+        if (!search.cooling.equals("geometric") && !search.cooling.equals("linear")
+                && !search.cooling.equals("log")) {
+            System.err.println("Error: -cooling must be one of 'geometric', 'linear' or 'log'");
+            return;
+        }
+        if (mode.equals("pcount") && N > 64) {
+            System.err.println("Error: pcount only supports N <= 64");
+            return;
+        }
+        if (threads < 1) {
+            System.err.println("Error: -threads must be >= 1");
             return;
         }
 
@@ -92,11 +188,61 @@ public class nq {
             queens.printQueenArray();
         }
 
+        else if (mode.equals("bit")) {
+            System.out.println("Running bitboard DFS with N = " + N);
+            NQueensBitboard queens = new NQueensBitboard(N, false);
+            System.out.println(queens.getStatus());
+            System.out.println(queens.getQueenPosString());
+        }
+
+        else if (mode.equals("count")) {
+            System.out.println("Counting all solutions with N = " + N);
+            NQueensBitboard queens = new NQueensBitboard(N, true);
+            System.out.println(queens.getStatus());
+        }
+
+        else if (mode.equals("pcount")) {
+            System.out.println("Counting all solutions on " + threads + " threads with N = " + N);
+            NQueensParallel queens = new NQueensParallel(N, threads);
+            System.out.println(queens.getStatus());
+        }
+
+        else if (mode.equals("construct")) {
+            System.out.println("Constructing a board with N = " + N);
+            // stream straight to stdout so huge boards never sit in memory
+            NQueensConstruction.writeQueens(N, new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        }
+
         else if (mode.equals("hc")) {
             System.out.println("Running hill climbing wth N = " + N);
             NQueensHillClimbing queens = new NQueensHillClimbing(N, restarts, sideways, seed);
             System.out.println(queens.getStatus());
             System.out.println(queens.getQueenPosString());
         }
+
+        else if (mode.equals("phc")) {
+            System.out.println("Running parallel hill climbing on " + threads + " threads with N = " + N);
+            NQueensParallelHillClimbing queens = new NQueensParallelHillClimbing(N, restarts, sideways, seed,
+                    threads);
+            System.out.println(queens.getStatus());
+            System.out.println(queens.getQueenPosString());
+        }
+
+        else if (mode.equals("tabu") || mode.equals("sa")) {
+            search.mode = mode;
+            search.maxSteps = steps;
+            System.out.println("Running " + (mode.equals("tabu") ? "tabu search" : "simulated annealing")
+                    + " with N = " + N);
+            NQueensHillClimbing queens = new NQueensHillClimbing(N, search, seed);
+            System.out.println(queens.getStatus());
+            System.out.println(queens.getQueenPosString());
+        }
+
+        else if (mode.equals("mc")) {
+            System.out.println("Running min-conflicts with N = " + N);
+            NQueensMinConflicts queens = new NQueensMinConflicts(N, steps, seed);
+            System.out.println(queens.getStatus());
+            System.out.println(queens.getQueenPosString());
+        }
     }
 }
@@ -1,14 +1,37 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
 
 /**
  *
  * Usage examples:
  * java Markov -max -df .9 -tol 0.0001 some-input.txt
  * java Markov -df 1.0 -iter 200 map.txt
+ * java Markov -solver sor -omega 1.2 big-map.txt
+ * java Markov -method vi -prioritized -tol 1e-6 -iter 1000 big-map.txt
+ * java Markov -metrics run.jsonl map.txt
+ * java Markov -method vi -update jacobi -threads 8 big-map.txt
+ * java Markov -df .9 -save run.warm map.txt then java Markov -df .95 -warm run.warm map.txt
+ * java Markov -dfs 0.5:0.95:0.05 -threads 4 map.txt
  * 
- * CLI Args, java Markov <-max> <-df <float>> <-tol <float>> <txtFilePath>
+ * CLI Args, java Markov <-max> <-df <float>> <-tol <float>> <-iter <int>> <-method <pi|vi|mpi>>
+ * <-sweeps <int>> <-prioritized> <-update <gs|jacobi|async>> <-threads <int>> <-solver <auto|dense|sor>>
+ * <-omega <float>> <-metrics <path|->> <-warm <path>> <-save <path>> <-dfs <list|start:end:step>>
+ * <txtFilePath>
+ * 
+ * java Markov compile map.txt map.mdpb
+ * writes the parsed graph in a binary form that loads without parsing, the
+ * solver takes either kind of file as txtFilePath
+ * 
+ * java Markov serve <-port <int>> <-cache <int>> <-workers <int>>
+ * stays running and answers one solve per line (the usual flags and input
+ * file), from stdin or from connections to 127.0.0.1:port
  * 
  * Output:
  * - Optimal policy (only for true decision nodes) and values (formatted to 3
@@ -17,39 +40,100 @@ import java.util.regex.*;
 public class Markov {
 
     // config given by command line
-    static class Config {
+    static class Config implements Cloneable {
         double df = 1.0;
         boolean maximize = false;
         double tol = 1e-3;
         int iter = 150;
+        String solver = "auto"; // policy evaluation: auto, dense or sor
+        double omega = 1.0; // SOR relaxation, 1.0 is plain Gauss-Seidel
+        String method = "pi"; // pi = policy iteration, vi = value iteration, mpi = modified policy iteration
+        int sweeps = 5; // evaluation sweeps per improvement for mpi
+        boolean prioritized = false; // vi updates the largest residuals first
+        String update = "gs"; // vi/mpi sweeps: gs in place, jacobi double buffered, async striped blocks
+        int threads = 1; // workers for sweeps and greedy policy extraction
+        ForkJoinPool pool = null; // created by solve when threads > 1
+        String warmPath = null; // policy and values from an earlier run to start from
+        String savePath = null; // where to write this run's policy and values
+        Solution warm = null; // read from warmPath once the graph is loaded
+        Metrics metrics = null; // only set with -metrics, null means nothing is measured
+        double[] dfs = null; // -dfs sweep, sorted ascending, replaces -df when set
+        PrintStream warnings = System.err; // serve sends them back with the reply instead
         String inputPath;
+
+        // shallow copy, one per run of a -dfs sweep
+        Config copy() {
+            try {
+                return (Config) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
     }
 
-    // fields for each node
-    static class NodeSpec {
+    // Resolved graph in compressed sparse row form
+    // node s's edges are targets[offsets[s] .. offsets[s + 1]) and every field
+    // is one flat array, so the object count doesn't grow with the graph
+    static class Graph {
+        static final byte TERMINAL = 0, CHANCE = 1, DECISION = 2, FORCED = 3;
+
+        int n;
+        double[] reward;
+        int[] offsets;
+        int[] targets;
+        double[] probs; // per edge, a chance node's probabilities, 0 for other nodes
+        double[] success; // per node, a decision node's success probability, 1 without a % line
+        double[] fail; // per node, a decision node's probability of each edge it didn't pick
+        byte[] type; // FORCED is a decision node with a single edge, so nothing to choose
+        byte[] nameBytes; // all names back to back, node s's are nameBytes[nameStart[s] .. nameStart[s + 1])
+        int[] nameStart;
+
+        int degree(int s) {
+            return offsets[s + 1] - offsets[s];
+        }
+
+        // decision node with more than one edge, the only kind the policy covers
+        boolean hasChoice(int s) {
+            return type[s] == DECISION;
+        }
 
-        String name;
-        Double reward;
-        List<String> edgeNames = null;
-        List<Double> probs = null;
+        // fills fail from success, once the types are known
+        void splitFailures() {
+            fail = new double[n];
+            for (int s = 0; s < n; s++) {
+                if (type[s] == DECISION && success[s] != 1.0)
+                    fail[s] = (1.0 - success[s]) / (degree(s) - 1);
+            }
+        }
 
-        public NodeSpec(String name) {
-            this.name = name;
+        String name(int s) {
+            return new String(nameBytes, nameStart[s], nameStart[s + 1] - nameStart[s], StandardCharsets.ISO_8859_1);
         }
     }
 
-    // Resolved graph
-    static class Graph {
+    // Reverse adjacency, node t's predecessors are nodes[start[t] .. start[t + 1])
+    static class Adjacency {
+        int[] start;
+        int[] nodes;
+    }
+
+    // Sparse matrix in compressed sparse row form
+    // row i holds cols/vals[rowStart[i] .. rowStart[i + 1])
+    static class SparseMatrix {
         int n;
-        String[] names;
-        double[] reward;
-        int[][] edges;
-        double[][] probsRaw;
+        int[] rowStart;
+        int[] cols;
+        double[] vals;
+    }
 
-        boolean[] isTerminal;
-        boolean[] isChance;
-        boolean[] isDecision;
-        boolean[] forcedForSingleEdge;
+    // Strongly connected components, in the order Tarjan finishes them
+    // component c holds nodes[start[c] .. start[c + 1]), and every edge out of a
+    // component leads to one listed before it, so solving in this order always
+    // has the successors' values ready
+    static class Components {
+        int count;
+        int[] start;
+        int[] nodes;
     }
 
     // Policy class
@@ -71,35 +155,174 @@ public class Markov {
         boolean equalsTo(Policy other) {
             return Arrays.equals(this.actionIndex, other.actionIndex);
         }
+
+        // number of nodes whose action differs
+        int changesFrom(Policy other) {
+            int changes = 0;
+            for (int i = 0; i < actionIndex.length; i++) {
+                if (actionIndex[i] != other.actionIndex[i])
+                    changes++;
+            }
+            return changes;
+        }
     }
 
-    // main method, parses a graph and generates the policy and runs markov for it
-    public static void main(String[] args) {
-        try {
-            Config cfg = parseArgs(args);
-            Map<String, NodeSpec> specs = parseInputFile(cfg.inputPath);
-            Graph g = buildGraph(specs);
+    // Opt-in instrumentation, writes one JSON object per line
+    // every call site checks cfg.metrics != null first, so a normal run does
+    // none of the extra work (residuals, policy diffs, memory reads)
+    static class Metrics {
+        PrintStream out;
+        boolean ownsStream;
+        long startNanos = System.nanoTime();
+        long lapNanos = startNanos;
+
+        // log to a stream someone else closes, serve uses the reply
+        Metrics(PrintStream out) {
+            this.out = out;
+        }
 
-            // generate empty policy
-            Policy pi = initialPolicy(g);
+        Metrics(String path) throws UserError {
+            if (path.equals("-")) {
+                out = System.err;
+            } else {
+                try {
+                    out = new PrintStream(new BufferedOutputStream(new FileOutputStream(path)), false, "UTF-8");
+                    ownsStream = true;
+                } catch (IOException e) {
+                    throw new UserError("Cannot write metrics to " + path + ": " + e.getMessage());
+                }
+            }
+        }
 
-            // Policy iteration
-            Policy optimalPolicy;
-            double[] optimalValues;
-            int safetyCap = 1000;
-            while (true) {
-                double[] V = valueIteration(g, pi, cfg);
-                Policy piPrime = greedyPolicy(g, V, cfg);
+        // time since the last phase or iteration record
+        double lapMs() {
+            long now = System.nanoTime();
+            double ms = (now - lapNanos) / 1e6;
+            lapNanos = now;
+            return ms;
+        }
 
-                if (pi.equalsTo(piPrime) || safetyCap-- <= 0) {
-                    optimalPolicy = piPrime;
-                    optimalValues = V;
-                    break;
+        static long usedBytes() {
+            Runtime rt = Runtime.getRuntime();
+            return rt.totalMemory() - rt.freeMemory();
+        }
+
+        // parse, build and other one-off steps
+        void phase(String name, int nodes) {
+            out.printf(Locale.ROOT, "{\"event\":\"phase\",\"name\":\"%s\",\"nodes\":%d,\"timeMs\":%.3f,\"usedBytes\":%d}%n",
+                    name, nodes, lapMs(), usedBytes());
+        }
+
+        // one policy improvement, or one sweep for vi
+        // residual is the largest value change, policyChanges is -1 when the method has no policy yet
+        void iteration(String method, int round, double residual, int policyChanges) {
+            out.printf(Locale.ROOT,
+                    "{\"event\":\"iteration\",\"method\":\"%s\",\"round\":%d,\"residual\":%s,\"policyChanges\":%d,\"timeMs\":%.3f,\"usedBytes\":%d}%n",
+                    method, round, number(residual), policyChanges, lapMs(), usedBytes());
+        }
+
+        // JSON has no Infinity, the first pi round has nothing to compare against
+        static String number(double v) {
+            return Double.isFinite(v) ? String.format(Locale.ROOT, "%.6e", v) : "null";
+        }
+
+        // shape of the SCC split for one policy evaluation
+        void components(int count, int largest) {
+            out.printf(Locale.ROOT, "{\"event\":\"scc\",\"components\":%d,\"largest\":%d}%n", count, largest);
+        }
+
+        // residual of a dense solve, max |(I - df P) V - r|
+        void solveResidual(double residual) {
+            out.printf(Locale.ROOT, "{\"event\":\"solve\",\"solver\":\"dense\",\"residual\":%.6e}%n", residual);
+        }
+
+        void summary(String method, Solution sol) {
+            Runtime rt = Runtime.getRuntime();
+            out.printf(Locale.ROOT,
+                    "{\"event\":\"summary\",\"method\":\"%s\",\"rounds\":%d,\"converged\":%b,\"totalMs\":%.3f,\"usedBytes\":%d,\"maxBytes\":%d}%n",
+                    method, sol.rounds, sol.converged, (System.nanoTime() - startNanos) / 1e6, usedBytes(), rt.maxMemory());
+        }
+
+        void close() {
+            out.flush();
+            if (ownsStream)
+                out.close();
+        }
+    }
+
+    // final policy and values from one of the solve methods
+    static class Solution {
+        Policy pi;
+        double[] V;
+        int rounds; // policy improvements, or sweeps for vi
+        boolean converged = true;
+    }
+
+    // Loaded graphs for serve, least recently used first
+    // keyed by absolute path, an entry only counts while the file's modification
+    // time and size are what they were when it was loaded
+    static class GraphCache {
+        static class Loaded {
+            FileTime modified;
+            long size;
+            Graph graph;
+        }
+
+        final LinkedHashMap<String, Loaded> entries;
+
+        GraphCache(int capacity) {
+            entries = new LinkedHashMap<String, Loaded>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Loaded> eldest) {
+                    return size() > capacity;
                 }
-                pi = piPrime;
+            };
+        }
+
+        // graphs are never written to once loaded, so one copy serves every request
+        // two requests missing on the same file at once both load it, the later put wins
+        Graph get(String path) throws IOException, UserError {
+            Path file = Paths.get(path).toAbsolutePath().normalize();
+            String key = file.toString();
+            FileTime modified = Files.getLastModifiedTime(file);
+            long size = Files.size(file);
+            synchronized (entries) {
+                Loaded e = entries.get(key);
+                if (e != null && e.modified.equals(modified) && e.size == size)
+                    return e.graph;
+            }
+
+            Loaded e = new Loaded();
+            e.modified = modified;
+            e.size = size;
+            e.graph = loadGraph(key);
+            synchronized (entries) {
+                entries.put(key, e);
             }
+            return e.graph;
+        }
+    }
 
-            printOutput(g, optimalPolicy, optimalValues);
+    // main method, parses a graph and generates the policy and runs markov for it
+    public static void main(String[] args) {
+        try {
+            if (args.length > 0 && args[0].equals("compile")) {
+                if (args.length != 3)
+                    throw new UserError("Usage: java Markov compile <input.txt> <output>");
+                Graph g = loadGraph(args[1]);
+                writeCompiled(g, args[2]);
+                System.out.println("Compiled " + g.n + " nodes to " + args[2]);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("serve")) {
+                serve(args);
+                return;
+            }
+            Config cfg = parseArgs(args);
+            Graph g = loadGraph(cfg.inputPath);
+            run(g, cfg, System.out);
         } catch (UserError e) {
             System.err.println("Error: " + e.getMessage());
             System.exit(2);
@@ -110,9 +333,202 @@ public class Markov {
         }
     }
 
+    /**
+     * Everything a run does once the graph is loaded: warm start, solve, print,
+     * save and metrics
+     * 
+     * @param g   graph from loadGraph
+     * @param cfg parsed flags
+     * @param out where the policy and values are printed
+     */
+    static void run(Graph g, Config cfg, PrintStream out) throws IOException, UserError, InterruptedException,
+            ExecutionException {
+        try {
+            if (cfg.metrics != null)
+                cfg.metrics.phase("load", g.n);
+            if (cfg.warmPath != null)
+                cfg.warm = readWarmStart(g, cfg.warmPath, cfg.warnings);
+
+            if (cfg.dfs != null) {
+                Solution[] sols = solveSweep(g, cfg);
+                printSweepTable(g, cfg.dfs, sols, out);
+                return;
+            }
+
+            Solution sol = solve(g, cfg);
+            if (!sol.converged) {
+                cfg.warnings.println("Warning: stopped after " + sol.rounds + " iterations (-iter) before reaching -tol");
+            }
+
+            printOutput(g, sol.pi, sol.V, out);
+            if (cfg.savePath != null)
+                writeWarmStart(g, sol, cfg.savePath);
+            if (cfg.metrics != null)
+                cfg.metrics.summary(cfg.method, sol);
+        } finally {
+            if (cfg.metrics != null)
+                cfg.metrics.close();
+        }
+    }
+
+    /**
+     * Resident mode, saves the JVM start, parse and JIT warm-up on every call
+     * Each request is one line holding the flags and input file of a normal
+     * run, split on whitespace. The reply is what that run would print, or
+     * "Error: ..." if it fails, then an empty line. Blank lines and lines
+     * starting with # get no reply.
+     * Without -port requests are read from stdin and replies written to stdout,
+     * with it every connection to 127.0.0.1:port works the same way. Either way
+     * replies come back in the order their requests were sent.
+     * 
+     * @param args "serve" then -port, -cache (graphs kept loaded) and -workers
+     *             (requests solved at once)
+     */
+    static void serve(String[] args) throws IOException, UserError, InterruptedException {
+        int port = -1;
+        int capacity = 8;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int i = 1;
+        while (i < args.length) {
+            String a = args[i];
+            if (a.equals("-port")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -port");
+                port = parseIntStrict(args[++i], "-port");
+                if (port < 0 || port > 65535)
+                    throw new UserError("port must be in [0,65535]");
+                i++;
+            } else if (a.equals("-cache")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -cache");
+                capacity = parseIntStrict(args[++i], "-cache");
+                if (capacity <= 0)
+                    throw new UserError("cache must be > 0");
+                i++;
+            } else if (a.equals("-workers")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -workers");
+                workers = parseIntStrict(args[++i], "-workers");
+                if (workers <= 0)
+                    throw new UserError("workers must be > 0");
+                i++;
+            } else {
+                throw new UserError("Unknown flag for serve: " + a);
+            }
+        }
+
+        GraphCache cache = new GraphCache(capacity);
+        ExecutorService solvers = Executors.newFixedThreadPool(workers);
+        try {
+            if (port < 0) {
+                converse(new InputStreamReader(System.in, StandardCharsets.UTF_8), System.out, cache, solvers);
+                return;
+            }
+            ExecutorService connections = Executors.newCachedThreadPool();
+            try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+                System.err.println("Listening on " + server.getLocalSocketAddress());
+                while (true) {
+                    Socket socket = server.accept();
+                    connections.execute(() -> {
+                        try (Socket s = socket) {
+                            converse(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8),
+                                    s.getOutputStream(), cache, solvers);
+                        } catch (IOException | InterruptedException e) {
+                            System.err.println("Connection closed: " + e.getMessage());
+                        }
+                    });
+                }
+            } finally {
+                connections.shutdownNow();
+            }
+        } finally {
+            solvers.shutdown();
+        }
+    }
+
+    /**
+     * Reads requests until the end of input, solves them on the shared workers
+     * and writes the replies in request order
+     * The reader queues a future per request and a writer thread drains the
+     * queue, so one client can have several solves running at once
+     */
+    static void converse(Reader input, OutputStream output, GraphCache cache, ExecutorService solvers)
+            throws IOException, InterruptedException {
+        BlockingQueue<Future<byte[]>> replies = new LinkedBlockingQueue<>();
+        Future<byte[]> end = CompletableFuture.completedFuture(null);
+        Thread writer = new Thread(() -> {
+            try {
+                for (Future<byte[]> f = replies.take(); f != end; f = replies.take()) {
+                    byte[] reply;
+                    try {
+                        reply = f.get();
+                    } catch (ExecutionException e) {
+                        // answer catches exceptions, this is an Error such as running out of memory
+                        reply = ("Error: " + e.getCause() + "\n\n").getBytes(StandardCharsets.UTF_8);
+                    }
+                    output.write(reply);
+                    output.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // client went away, the reader stops at its end of input
+            }
+        });
+        writer.start();
+
+        // not closed here, closing a socket's input stream closes the socket before the replies are out
+        BufferedReader in = new BufferedReader(input);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String request = line.trim();
+                if (request.isEmpty() || request.startsWith("#"))
+                    continue;
+                replies.put(solvers.submit(() -> answer(request, cache)));
+            }
+        } finally {
+            replies.put(end);
+            writer.join();
+        }
+    }
+
+    // one request line to its reply, errors included, so a bad request never stops the server
+    static byte[] answer(String request, GraphCache cache) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buf, false, StandardCharsets.UTF_8);
+        Config cfg = null;
+        try {
+            cfg = parseArgs(request.split("\\s+"), out);
+            cfg.warnings = out;
+            run(cache.get(cfg.inputPath), cfg, out);
+        } catch (UserError e) {
+            out.println("Error: " + e.getMessage());
+        } catch (NoSuchFileException e) {
+            out.println("Error: No such file " + e.getMessage());
+        } catch (Exception e) {
+            out.println("Error: " + e);
+        } finally {
+            // run closes -metrics, close it here too in case the graph never loaded
+            if (cfg != null && cfg.metrics != null)
+                cfg.metrics.close();
+        }
+        out.println();
+        out.flush();
+        return buf.toByteArray();
+    }
+
     // helper function parse flags given
     // returns a config object containing the parsed flags
     static Config parseArgs(String[] args) throws UserError {
+        return parseArgs(args, null);
+    }
+
+    /**
+     * Same as parseArgs for a serve request, which must not write files on the
+     * server: -save is refused and -metrics only takes -, written to the reply
+     * 
+     * @param reply stream the reply is built in, null for a normal run
+     */
+    static Config parseArgs(String[] args, PrintStream reply) throws UserError {
         if (args.length == 0)
             throw new UserError("No arguments. Provide flags and an input file.");
         Config cfg = new Config();
@@ -143,6 +559,79 @@ public class Markov {
                 if (cfg.iter <= 0)
                     throw new UserError("iter must be > 0");
                 i++;
+            } else if (a.equals("-method")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -method");
+                cfg.method = args[++i].toLowerCase();
+                if (!cfg.method.equals("pi") && !cfg.method.equals("vi") && !cfg.method.equals("mpi"))
+                    throw new UserError("Method must be one of pi, vi, mpi");
+                i++;
+            } else if (a.equals("-sweeps")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -sweeps");
+                cfg.sweeps = parseIntStrict(args[++i], "-sweeps");
+                if (cfg.sweeps <= 0)
+                    throw new UserError("sweeps must be > 0");
+                i++;
+            } else if (a.equals("-prioritized")) {
+                cfg.prioritized = true;
+                i++;
+            } else if (a.equals("-update")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -update");
+                cfg.update = args[++i].toLowerCase();
+                if (!cfg.update.equals("gs") && !cfg.update.equals("jacobi") && !cfg.update.equals("async"))
+                    throw new UserError("Update must be one of gs, jacobi, async");
+                i++;
+            } else if (a.equals("-threads")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -threads");
+                cfg.threads = parseIntStrict(args[++i], "-threads");
+                if (cfg.threads <= 0)
+                    throw new UserError("threads must be > 0");
+                i++;
+            } else if (a.equals("-solver")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -solver");
+                cfg.solver = args[++i].toLowerCase();
+                if (!cfg.solver.equals("auto") && !cfg.solver.equals("dense") && !cfg.solver.equals("sor"))
+                    throw new UserError("Solver must be one of auto, dense, sor");
+                i++;
+            } else if (a.equals("-omega")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -omega");
+                cfg.omega = parseDoubleStrict(args[++i], "-omega");
+                if (cfg.omega <= 0 || cfg.omega >= 2)
+                    throw new UserError("omega must be in (0,2)");
+                i++;
+            } else if (a.equals("-warm")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -warm");
+                cfg.warmPath = args[++i];
+                i++;
+            } else if (a.equals("-save")) {
+                if (reply != null)
+                    throw new UserError("-save can't be used in serve requests");
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -save");
+                cfg.savePath = args[++i];
+                i++;
+            } else if (a.equals("-dfs")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -dfs");
+                cfg.dfs = parseDiscountList(args[++i]);
+                i++;
+            } else if (a.equals("-metrics")) {
+                if (i + 1 >= args.length)
+                    throw new UserError("Missing argument for -metrics");
+                String path = args[++i];
+                if (reply == null)
+                    cfg.metrics = new Metrics(path);
+                else if (path.equals("-"))
+                    cfg.metrics = new Metrics(reply);
+                else
+                    throw new UserError("-metrics only takes - in serve requests, the log comes back in the reply");
+                i++;
             } else if (a.startsWith("-")) {
                 throw new UserError("Unknown flag: " + a);
             } else {
@@ -155,9 +644,48 @@ public class Markov {
         }
         if (cfg.inputPath == null)
             throw new UserError("Missing input file path.");
+        if (cfg.dfs != null && cfg.savePath != null)
+            throw new UserError("-save can't be used with -dfs, there is one solution per discount factor");
         return cfg;
     }
 
+    /**
+     * Parses -dfs, either a comma separated list (0.5,0.9,0.99) or an
+     * inclusive range start:end:step (0.5:0.95:0.05)
+     * 
+     * @return distinct discount factors in ascending order
+     */
+    static double[] parseDiscountList(String s) throws UserError {
+        double[] dfs;
+        if (s.indexOf(':') >= 0) {
+            String[] parts = s.split(":");
+            if (parts.length != 3)
+                throw new UserError("-dfs range must be start:end:step");
+            double start = parseDoubleStrict(parts[0], "-dfs");
+            double end = parseDoubleStrict(parts[1], "-dfs");
+            double step = parseDoubleStrict(parts[2], "-dfs");
+            if (step <= 0 || end < start)
+                throw new UserError("-dfs range needs start <= end and step > 0");
+            // small slack so 0.5:0.95:0.05 still includes 0.95
+            int count = (int) Math.floor((end - start) / step + 1e-9) + 1;
+            if (count > 10000)
+                throw new UserError("-dfs range has too many values (" + count + ")");
+            dfs = new double[count];
+            for (int k = 0; k < count; k++)
+                dfs[k] = Math.min(end, start + k * step);
+        } else {
+            String[] parts = s.split(",");
+            dfs = new double[parts.length];
+            for (int k = 0; k < parts.length; k++)
+                dfs[k] = parseDoubleStrict(parts[k].trim(), "-dfs");
+        }
+        for (double df : dfs) {
+            if (df < 0 || df > 1)
+                throw new UserError("Discount factor must be in [0,1]");
+        }
+        return Arrays.stream(dfs).sorted().distinct().toArray();
+    }
+
     static double parseDoubleStrict(String s, String flag) throws UserError {
         try {
             return Double.parseDouble(s);
@@ -174,200 +702,635 @@ public class Markov {
         }
     }
 
-    // parses text file so it can be processed
-    static Map<String, NodeSpec> parseInputFile(String path) throws Exception {
-        List<String> lines = Files.readAllLines(Paths.get(path));
+    /**
+     * Reads a text MDP file into a graph
+     * 
+     * @param path input file
+     * @return resolved graph
+     * @throws IOException if the file can't be read
+     * @throws UserError   if the file is malformed
+     */
+    static Graph loadGraph(String path) throws IOException, UserError {
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            // compiled files are recognised by their first bytes, not the name
+            ByteBuffer head = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (head.hasRemaining() && ch.read(head) > 0)
+                ;
+            if (!head.hasRemaining() && head.getInt(0) == COMPILED_MAGIC)
+                return readCompiled(ch);
+            ch.position(0);
+            return new MdpParser(Channels.newInputStream(ch)).parse();
+        }
+    }
+
+    // Compiled graph file, everything little-endian, the Graph's arrays as they are
+    // header: magic "MDPB", version, n, edge count, name bytes (5 ints)
+    // then reward double[n], success double[n], probs double[edgeCount],
+    // offsets int[n + 1], targets int[edgeCount], nameStart int[n + 1],
+    // type byte[n], names byte[nameBytes]
+    static final int COMPILED_MAGIC = 0x4250444D; // "MDPB" read little-endian
+    static final int COMPILED_VERSION = 2;
+    static final int COMPILED_HEADER = 20;
+
+    static long compiledSize(long n, long edgeCount, long nameTotal) {
+        return COMPILED_HEADER + 8L * (2 * n + edgeCount) + 4L * (2 * (n + 1) + edgeCount) + n + nameTotal;
+    }
 
-        // Patterns (lenient about spaces)
-        Pattern rewardPat = Pattern.compile("^\\s*([A-Za-z0-9_]+)\\s*=\\s*(-?\\d+(?:\\.\\d+)?)\\s*$");
-        Pattern edgesPat = Pattern.compile("^\\s*([A-Za-z0-9_]+)\\s*:\\s*\\[\\s*([A-Za-z0-9_\\s,]+?)\\s*]\\s*$");
-        // Allow "F%.8" or "F % .8 .2"
-        Pattern probsPat = Pattern.compile("^\\s*([A-Za-z0-9_]+)\\s*%\\s*([0-9Ee+\\-\\.\\s]+)\\s*$");
+    /**
+     * Writes a resolved graph as a compiled file
+     * 
+     * @param g    graph from loadGraph
+     * @param path output file, overwritten
+     * @throws IOException
+     * @throws UserError if the graph is too big for one file mapping
+     */
+    static void writeCompiled(Graph g, String path) throws IOException, UserError {
+        int n = g.n;
+        int edgeCount = g.targets.length;
+        int nameTotal = g.nameBytes.length;
+        long size = compiledSize(n, edgeCount, nameTotal);
+        if (size > Integer.MAX_VALUE)
+            throw new UserError("Graph is too large to compile (" + size + " bytes, limit 2GB)");
+
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(COMPILED_MAGIC).putInt(COMPILED_VERSION).putInt(n).putInt(edgeCount).putInt(nameTotal);
+            buf.asDoubleBuffer().put(g.reward).put(g.success).put(g.probs);
+            buf.position(buf.position() + 8 * (2 * n + edgeCount));
+            buf.asIntBuffer().put(g.offsets).put(g.targets).put(g.nameStart);
+            buf.position(buf.position() + 4 * (2 * (n + 1) + edgeCount));
+            buf.put(g.type).put(g.nameBytes);
+            buf.force();
+        }
+    }
 
-        Map<String, NodeSpec> nodes = new LinkedHashMap<>();
+    /**
+     * Maps a compiled file and copies its sections straight into the graph's
+     * arrays with bulk gets
+     * The graph was checked when it was compiled, so only the layout is checked
+     * 
+     * @param ch open channel on the file
+     * @return graph, the same as loading the text it was compiled from
+     * @throws IOException
+     * @throws UserError if the file is truncated or from another version
+     */
+    static Graph readCompiled(FileChannel ch) throws IOException, UserError {
+        long size = ch.size();
+        if (size < COMPILED_HEADER || size > Integer.MAX_VALUE)
+            throw new UserError("Compiled file has a bad size (" + size + " bytes)");
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.getInt(); // magic, already checked
+        int version = buf.getInt();
+        if (version != COMPILED_VERSION)
+            throw new UserError("Compiled file is version " + version + ", expected " + COMPILED_VERSION
+                    + ", compile it again");
+        int n = buf.getInt();
+        int edgeCount = buf.getInt();
+        int nameTotal = buf.getInt();
+        if (n <= 0 || edgeCount < 0 || nameTotal < 0 || compiledSize(n, edgeCount, nameTotal) != size)
+            throw new UserError("Compiled file is truncated or corrupt");
 
-        for (String raw : lines) {
-            String line = raw.trim();
-            if (line.isEmpty() || line.startsWith("#"))
-                continue;
+        Graph g = new Graph();
+        g.n = n;
+        g.reward = new double[n];
+        g.success = new double[n];
+        g.probs = new double[edgeCount];
+        g.offsets = new int[n + 1];
+        g.targets = new int[edgeCount];
+        g.nameStart = new int[n + 1];
+        g.type = new byte[n];
+        g.nameBytes = new byte[nameTotal];
+
+        buf.asDoubleBuffer().get(g.reward).get(g.success).get(g.probs);
+        buf.position(buf.position() + 8 * (2 * n + edgeCount));
+        buf.asIntBuffer().get(g.offsets).get(g.targets).get(g.nameStart);
+        buf.position(buf.position() + 4 * (2 * (n + 1) + edgeCount));
+        buf.get(g.type).get(g.nameBytes);
+        g.splitFailures();
+        return g;
+    }
 
-            Matcher m;
+    // Open addressing table from name bytes to dense ids
+    // names stay as bytes, the graph copies them into its own table in node order
+    static class NameTable {
+        byte[] pool = new byte[1 << 12];
+        int[] start = new int[257]; // id's bytes are pool[start[id] .. start[id + 1])
+        int[] hash = new int[256];
+        int[] slots = new int[512]; // id + 1, 0 is empty
+        int count;
+
+        int intern(byte[] b, int len) {
+            int h = 0;
+            for (int i = 0; i < len; i++)
+                h = 31 * h + b[i];
+            h ^= h >>> 16;
+            int mask = slots.length - 1;
+            for (int i = h & mask;; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (id < 0)
+                    return add(b, len, h, i);
+                if (hash[id] == h && sameBytes(id, b, len))
+                    return id;
+            }
+        }
 
-            m = rewardPat.matcher(line);
-            if (m.matches()) {
-                String name = m.group(1);
-                double val = Double.parseDouble(m.group(2));
-                NodeSpec ns = nodes.computeIfAbsent(name, NodeSpec::new);
-                ns.reward = val;
-                continue;
+        boolean sameBytes(int id, byte[] b, int len) {
+            int from = start[id];
+            if (start[id + 1] - from != len)
+                return false;
+            for (int i = 0; i < len; i++) {
+                if (pool[from + i] != b[i])
+                    return false;
+            }
+            return true;
+        }
+
+        int add(byte[] b, int len, int h, int slot) {
+            int id = count++;
+            if (start[id] + len > pool.length)
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, start[id] + len));
+            if (id == hash.length) {
+                hash = Arrays.copyOf(hash, id * 2);
+                start = Arrays.copyOf(start, id * 2 + 1);
+            }
+            System.arraycopy(b, 0, pool, start[id], len);
+            start[id + 1] = start[id] + len;
+            hash[id] = h;
+            slots[slot] = id + 1;
+            if (count * 2 > slots.length)
+                rehash();
+            return id;
+        }
+
+        void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int id = 0; id < count; id++) {
+                int i = hash[id] & mask;
+                while (slots[i] != 0)
+                    i = (i + 1) & mask;
+                slots[i] = id + 1;
+            }
+        }
+
+        String name(int id) {
+            return new String(pool, start[id], start[id + 1] - start[id], StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // Streaming parser for the text format, one byte at a time off a buffer
+    // with no regexes and no per line Strings
+    // Names get an id the first time they are seen (line head or edge target),
+    // ids are renumbered at the end into the order nodes are first defined, so
+    // node order still follows the file
+    //
+    // Lines: name = reward | name : [a, b, ...] | name % p ... | # comment
+    // A later line for the same node replaces the earlier one
+    static class MdpParser {
+        static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+                1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+        InputStream in;
+        byte[] buf = new byte[1 << 16];
+        int pos;
+        int limit;
+        int c; // current byte, -1 at end of file
+        int line = 1;
+
+        byte[] token = new byte[64];
+        int tokenLen;
+
+        NameTable names = new NameTable();
+        // per id, grown as ids are handed out
+        double[] reward = new double[256];
+        boolean[] hasReward = new boolean[256];
+        // a node's latest edge and % lines, as slices of one shared pool each
+        int[] edgeAt = new int[256];
+        int[] edgeLen = new int[256];
+        int[] probAt = new int[256];
+        int[] probLen = new int[256];
+        int[] definedAs = new int[256]; // position in definition order + 1, 0 if only referenced
+        int defined;
+
+        int[] edgePool = new int[1 << 12];
+        int edgeUsed;
+        double[] probPool = new double[1 << 10];
+        int probUsed;
+
+        MdpParser(InputStream in) {
+            this.in = in;
+        }
+
+        Graph parse() throws IOException, UserError {
+            next();
+            while (c != -1) {
+                skipBlanks();
+                if (c == '\n') {
+                    nextLine();
+                } else if (c == '#') {
+                    while (c != '\n' && c != -1)
+                        next();
+                } else if (c != -1) {
+                    parseLine();
+                }
             }
+            if (defined == 0)
+                throw new UserError("No nodes parsed. Check input.");
+            return build();
+        }
 
-            m = edgesPat.matcher(line);
-            if (m.matches()) {
-                String name = m.group(1);
-                String inner = m.group(2);
-                NodeSpec ns = nodes.computeIfAbsent(name, NodeSpec::new);
-                List<String> outs = new ArrayList<>();
-                for (String tok : inner.split(",")) {
-                    String t = tok.trim();
-                    if (!t.isEmpty())
-                        outs.add(t);
+        void parseLine() throws IOException, UserError {
+            int id = readName();
+            if (definedAs[id] == 0)
+                definedAs[id] = ++defined;
+            skipBlanks();
+            if (c == '=') {
+                next();
+                skipBlanks();
+                reward[id] = readNumber();
+                hasReward[id] = true;
+            } else if (c == ':') {
+                next();
+                skipBlanks();
+                if (c != '[')
+                    fail("expected '[' after ':'");
+                next();
+                int from = edgeUsed;
+                while (true) {
+                    skipBlanks();
+                    if (c == ']' && edgeUsed == from)
+                        fail("empty edge list");
+                    int t = readName();
+                    if (edgeUsed == edgePool.length)
+                        edgePool = Arrays.copyOf(edgePool, edgeUsed * 2);
+                    edgePool[edgeUsed++] = t;
+                    skipBlanks();
+                    if (c == ']')
+                        break;
+                    if (c != ',')
+                        fail("expected ',' or ']' in edge list");
+                    next();
                 }
-                ns.edgeNames = outs;
-                continue;
+                next();
+                edgeAt[id] = from;
+                edgeLen[id] = edgeUsed - from;
+            } else if (c == '%') {
+                next();
+                int from = probUsed;
+                while (true) {
+                    skipBlanks();
+                    if (c == '\n' || c == -1)
+                        break;
+                    double p = readNumber();
+                    if (probUsed == probPool.length)
+                        probPool = Arrays.copyOf(probPool, probUsed * 2);
+                    probPool[probUsed++] = p;
+                }
+                if (probUsed == from)
+                    throw new UserError("Empty probability list for " + names.name(id));
+                probAt[id] = from;
+                probLen[id] = probUsed - from;
+            } else {
+                fail("expected '=', ':' or '%' after the node name");
+            }
+            skipBlanks();
+            if (c != '\n' && c != -1)
+                fail("unexpected trailing text");
+        }
+
+        // node name of [A-Za-z0-9_]+, returns its id
+        int readName() throws IOException, UserError {
+            tokenLen = 0;
+            while (isNameByte(c)) {
+                if (tokenLen == token.length)
+                    token = Arrays.copyOf(token, tokenLen * 2);
+                token[tokenLen++] = (byte) c;
+                next();
             }
+            if (tokenLen == 0)
+                fail("expected a node name");
+            int id = names.intern(token, tokenLen);
+            if (id == reward.length)
+                grow();
+            return id;
+        }
 
-            m = probsPat.matcher(line);
-            if (m.matches()) {
-                String name = m.group(1);
-                String inner = m.group(2);
-                NodeSpec ns = nodes.computeIfAbsent(name, NodeSpec::new);
-                List<Double> ps = new ArrayList<>();
-                for (String tok : inner.trim().split("\\s+")) {
-                    if (tok.isEmpty())
-                        continue;
-                    ps.add(Double.parseDouble(tok));
+        /**
+         * Reads a decimal number
+         * Plain decimals with up to 18 digits are built from a long, one
+         * division by an exact power of ten rounds the same way
+         * Double.parseDouble does, anything else goes through parseDouble
+         */
+        double readNumber() throws IOException, UserError {
+            tokenLen = 0;
+            while ((c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E') {
+                if (tokenLen == token.length)
+                    token = Arrays.copyOf(token, tokenLen * 2);
+                token[tokenLen++] = (byte) c;
+                next();
+            }
+            if (tokenLen == 0)
+                fail("expected a number");
+
+            int i = 0;
+            boolean neg = token[0] == '-';
+            if (neg || token[0] == '+')
+                i++;
+            long mant = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean dot = false;
+            for (; i < tokenLen; i++) {
+                byte b = token[i];
+                if (b >= '0' && b <= '9') {
+                    mant = mant * 10 + (b - '0');
+                    digits++;
+                    if (dot)
+                        scale++;
+                } else if (b == '.' && !dot) {
+                    dot = true;
+                } else {
+                    break;
                 }
-                if (ps.isEmpty())
-                    throw new UserError("Empty probability list for " + name);
-                ns.probs = ps;
-                continue;
+            }
+            if (i == tokenLen && digits > 0 && digits <= 18 && mant <= (1L << 53) && scale < POW10.length) {
+                double v = (scale == 0) ? (double) mant : mant / POW10[scale];
+                return neg ? -v : v;
             }
 
-            throw new UserError("Unrecognized line: " + line);
+            String text = new String(token, 0, tokenLen, StandardCharsets.ISO_8859_1);
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw new UserError("Line " + line + ": invalid number " + text);
+            }
         }
 
-        if (nodes.isEmpty())
-            throw new UserError("No nodes parsed. Check input.");
+        static boolean isNameByte(int b) {
+            return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+        }
 
-        return nodes;
-    }
+        void skipBlanks() throws IOException {
+            while (c == ' ' || c == '\t' || c == '\r')
+                next();
+        }
 
-    /**
-     * Builds the graph
-     * 
-     * @param specs parsed input file
-     * @return
-     * @throws UserError
-     */
-    static Graph buildGraph(Map<String, NodeSpec> specs) throws UserError {
-        for (NodeSpec ns : specs.values()) {
-            if (ns.edgeNames != null) {
-                for (String ref : ns.edgeNames) {
-                    if (!specs.containsKey(ref)) {
-                        throw new UserError("Edge target '" + ref + "' referenced by " + ns.name
+        void nextLine() throws IOException {
+            line++;
+            next();
+        }
+
+        void next() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    c = -1;
+                    return;
+                }
+            }
+            c = buf[pos++] & 0xFF;
+        }
+
+        void fail(String msg) throws UserError {
+            throw new UserError("Line " + line + ": " + msg);
+        }
+
+        void grow() {
+            int size = reward.length * 2;
+            reward = Arrays.copyOf(reward, size);
+            hasReward = Arrays.copyOf(hasReward, size);
+            edgeAt = Arrays.copyOf(edgeAt, size);
+            edgeLen = Arrays.copyOf(edgeLen, size);
+            probAt = Arrays.copyOf(probAt, size);
+            probLen = Arrays.copyOf(probLen, size);
+            definedAs = Arrays.copyOf(definedAs, size);
+        }
+
+        // renumbers ids into definition order and lays the pools out as a Graph
+        Graph build() throws UserError {
+            int ids = names.count;
+            int[] order = new int[defined];
+            for (int id = 0; id < ids; id++) {
+                if (definedAs[id] > 0)
+                    order[definedAs[id] - 1] = id;
+            }
+
+            for (int id : order) {
+                for (int e = edgeAt[id]; e < edgeAt[id] + edgeLen[id]; e++) {
+                    int t = edgePool[e];
+                    if (definedAs[t] == 0) {
+                        throw new UserError("Edge target '" + names.name(t) + "' referenced by " + names.name(id)
                                 + " must be separately defined (reward, edges, or probs).");
                     }
                 }
             }
-        }
 
-        // Indexing
-        int n = specs.size();
-        String[] names = specs.keySet().toArray(new String[0]);
-        Map<String, Integer> idx = new HashMap<>();
-        for (int i = 0; i < n; i++)
-            idx.put(names[i], i);
+            int n = defined;
+            Graph g = new Graph();
+            g.n = n;
+            g.reward = new double[n];
+            g.offsets = new int[n + 1];
+            g.nameStart = new int[n + 1];
+            boolean[] rewardSet = new boolean[n];
+            int[] probStart = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                int id = order[i];
+                g.reward[i] = reward[id];
+                rewardSet[i] = hasReward[id];
+                g.offsets[i + 1] = g.offsets[i] + edgeLen[id];
+                probStart[i + 1] = probStart[i] + probLen[id];
+                g.nameStart[i + 1] = g.nameStart[i] + names.start[id + 1] - names.start[id];
+            }
 
-        Graph g = new Graph();
-        g.n = n;
-        g.names = names;
-        g.reward = new double[n];
-        g.edges = new int[n][];
-        g.probsRaw = new double[n][];
-        g.isTerminal = new boolean[n];
-        g.isChance = new boolean[n];
-        g.isDecision = new boolean[n];
-        g.forcedForSingleEdge = new boolean[n];
+            g.targets = new int[g.offsets[n]];
+            g.nameBytes = new byte[g.nameStart[n]];
+            double[] rawProbs = new double[probStart[n]];
+            for (int i = 0; i < n; i++) {
+                int id = order[i];
+                int at = g.offsets[i];
+                for (int k = 0; k < edgeLen[id]; k++)
+                    g.targets[at + k] = definedAs[edgePool[edgeAt[id] + k]] - 1;
+                System.arraycopy(probPool, probAt[id], rawProbs, probStart[i], probLen[id]);
+                System.arraycopy(names.pool, names.start[id], g.nameBytes, g.nameStart[i],
+                        g.nameStart[i + 1] - g.nameStart[i]);
+            }
+            classifyNodes(g, rewardSet, probStart, rawProbs);
+            return g;
+        }
+    }
+
+    /**
+     * Checks every node and works out its type
+     * Fills in type, success and probs from the probabilities exactly as given
+     * in the file
+     * 
+     * @param g         graph with names, reward and edges
+     * @param rewardSet whether each node had a reward line
+     * @param probStart node s's % line is rawProbs[probStart[s] .. probStart[s + 1]), empty if it had none
+     * @param rawProbs  every % line back to back
+     * @throws UserError
+     */
+    static void classifyNodes(Graph g, boolean[] rewardSet, int[] probStart, double[] rawProbs) throws UserError {
+        int n = g.n;
+        g.type = new byte[n];
+        g.success = new double[n];
+        g.probs = new double[g.targets.length];
 
         for (int i = 0; i < n; i++) {
-            NodeSpec ns = specs.get(names[i]);
+            int from = probStart[i];
+            int count = probStart[i + 1] - from;
+            g.success[i] = 1.0;
 
-            if (ns.reward == null) {
-                throw new UserError("Missing reward definition for node '" + ns.name + "'");
+            if (!rewardSet[i]) {
+                throw new UserError("Missing reward definition for node '" + g.name(i) + "'");
             }
-            g.reward[i] = ns.reward;
 
-            if (ns.edgeNames == null || ns.edgeNames.isEmpty()) {
-                // terminal
-                g.edges[i] = new int[0];
-                g.isTerminal[i] = true;
-
-                if (ns.probs != null) {
-                    throw new UserError("Terminal node '" + ns.name + "' cannot have a probability line.");
+            int deg = g.degree(i);
+            if (deg == 0) {
+                g.type[i] = Graph.TERMINAL;
+                if (count > 0) {
+                    throw new UserError("Terminal node '" + g.name(i) + "' cannot have a probability line.");
                 }
                 continue;
             }
 
-            // has edges
-            int deg = ns.edgeNames.size();
-            int[] outs = new int[deg];
-            for (int k = 0; k < deg; k++)
-                outs[k] = idx.get(ns.edgeNames.get(k));
-            g.edges[i] = outs;
-
             if (deg == 1) {
-                // Forced single-edge transition
-                g.isDecision[i] = true;
-                g.forcedForSingleEdge[i] = true;
-                if (ns.probs != null && ns.probs.size() == 1 && Math.abs(ns.probs.get(0) - 1.0) > 1e-12) {
-                    /*
-                     * treat single edge as forced 1.0
-                     */
-                } else if (ns.probs != null && ns.probs.size() != 1) {
-                    throw new UserError("Node '" + ns.name
+                // Forced single-edge transition, a single prob other than 1.0 is ignored
+                g.type[i] = Graph.FORCED;
+                if (count > 1) {
+                    throw new UserError("Node '" + g.name(i)
                             + "' has one edge but multiple probs given. Remove the % line or give a single prob 1.0.");
                 }
-                g.probsRaw[i] = null;
                 continue;
             }
 
             // multiple edges
-            if (ns.probs == null) {
+            if (count == 0) {
                 // default: decision with p=1
-                g.isDecision[i] = true;
-                g.probsRaw[i] = null; // p=1 implied
-            } else if (ns.probs.size() == 1) {
+                g.type[i] = Graph.DECISION;
+            } else if (count == 1) {
                 // decision with success p
-                g.isDecision[i] = true;
-                g.probsRaw[i] = new double[] { ns.probs.get(0) };
-                if (g.probsRaw[i][0] < 0 || g.probsRaw[i][0] > 1) {
-                    throw new UserError("Node '" + ns.name + "' has invalid success probability " + g.probsRaw[i][0]);
+                g.type[i] = Graph.DECISION;
+                double p = rawProbs[from];
+                if (p < 0 || p > 1) {
+                    throw new UserError("Node '" + g.name(i) + "' has invalid success probability " + p);
                 }
-            } else if (ns.probs.size() == deg) {
+                g.success[i] = p;
+            } else if (count == deg) {
                 // chance node
-                g.isChance[i] = true;
-                g.probsRaw[i] = new double[deg];
+                g.type[i] = Graph.CHANCE;
                 double sum = 0;
                 for (int k = 0; k < deg; k++) {
-                    g.probsRaw[i][k] = ns.probs.get(k);
-                    sum += g.probsRaw[i][k];
+                    sum += rawProbs[from + k];
                 }
                 if (Math.abs(sum - 1.0) > 1e-9) {
-                    throw new UserError("Chance node '" + ns.name + "' probabilities must sum to 1 (got " + sum + ").");
+                    throw new UserError("Chance node '" + g.name(i) + "' probabilities must sum to 1 (got " + sum + ").");
                 }
-                for (double p : g.probsRaw[i]) {
+                for (int k = 0; k < deg; k++) {
+                    double p = rawProbs[from + k];
                     if (p < -1e-12 || p > 1 + 1e-12)
-                        throw new UserError("Chance node '" + ns.name + "' has invalid probability " + p);
+                        throw new UserError("Chance node '" + g.name(i) + "' has invalid probability " + p);
+                    g.probs[g.offsets[i] + k] = p;
                 }
             } else {
-                throw new UserError("Node '" + ns.name
+                throw new UserError("Node '" + g.name(i)
                         + "': probability list must have either 1 item (decision) or |edges| items (chance).");
             }
-            System.err.printf("%s: reward=%.1f edges=%s probs=%s%n",
-                    names[i], g.reward[i],
-                    Arrays.toString(g.edges[i]),
-                    Arrays.toString(g.probsRaw[i]));
         }
+        g.splitFailures();
+    }
 
-        return g;
+    // policy to start from, the warm start's if there is one
+    static Policy startPolicy(Graph g, Config cfg) {
+        return (cfg.warm != null) ? cfg.warm.pi.copy() : initialPolicy(g);
     }
 
-    // create initial policy
-    static Policy initialPolicy(Graph g) {
-        Policy pi = new Policy(g.n);
+    // values to start from, a copy of the warm start's if there is one
+    static double[] startValues(Graph g, Config cfg) {
+        return (cfg.warm != null) ? cfg.warm.V.clone() : new double[g.n];
+    }
+
+    /**
+     * Writes the policy and values of a run for -warm
+     * One line per node, name then action index (-1 for none) then value,
+     * values are written in full so a reload gets the same bits
+     * 
+     * @param g    graph the run solved
+     * @param sol  its solution
+     * @param path output file
+     * @throws IOException
+     */
+    static void writeWarmStart(Graph g, Solution sol, String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+            out.println("# markov warm start: node action value");
+            for (int s = 0; s < g.n; s++) {
+                out.print(g.name(s));
+                out.print(' ');
+                out.print(sol.pi.actionIndex[s]);
+                out.print(' ');
+                out.println(sol.V[s]);
+            }
+        }
+    }
+
+    /**
+     * Reads a file from writeWarmStart
+     * Nodes are matched by name, so the graph can have been edited since:
+     * unknown names are skipped, new nodes start like a cold run, and an
+     * action that no longer fits a node's edges falls back to the first one
+     * 
+     * @param g        graph being solved
+     * @param path     file from -save
+     * @param warnings where to say nothing matched
+     * @return starting policy and values
+     * @throws IOException
+     * @throws UserError if a line is malformed
+     */
+    static Solution readWarmStart(Graph g, String path, PrintStream warnings) throws IOException, UserError {
+        Map<String, Integer> idx = new HashMap<>();
+        for (int s = 0; s < g.n; s++)
+            idx.put(g.name(s), s);
+
+        Solution warm = new Solution();
+        warm.pi = initialPolicy(g);
+        warm.V = new double[g.n];
+        int matched = 0;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                // written with single spaces, so no regex split needed
+                int first = line.indexOf(' ');
+                int last = line.lastIndexOf(' ');
+                if (first < 0 || last <= first + 1)
+                    throw new UserError("Bad warm start line: " + line);
+                Integer s = idx.get(line.substring(0, first));
+                if (s == null)
+                    continue;
+                int a = parseIntStrict(line.substring(first + 1, last), "-warm");
+                warm.V[s] = parseDoubleStrict(line.substring(last + 1), "-warm");
+                if (warm.pi.actionIndex[s] >= 0 && a >= 0 && a < g.degree(s))
+                    warm.pi.actionIndex[s] = a;
+                matched++;
+            }
+        }
+        if (matched == 0)
+            warnings.println("Warning: no node in " + path + " matches this graph, starting cold");
+        return warm;
+    }
+
+    // create initial policy
+    static Policy initialPolicy(Graph g) {
+        Policy pi = new Policy(g.n);
         for (int s = 0; s < g.n; s++) {
-            if (g.isDecision[s] && !g.forcedForSingleEdge[s]) {
+            if (g.hasChoice(s)) {
                 // choose first action arbitrarily
                 pi.actionIndex[s] = 0;
             } else {
@@ -377,6 +1340,622 @@ public class Markov {
         return pi;
     }
 
+    /**
+     * Runs the solve method picked by -method
+     * 
+     * @param g   graph created by buildGraph
+     * @param cfg parsed flags
+     * @return final policy and values
+     */
+    static Solution solve(Graph g, Config cfg) {
+        if (cfg.threads > 1)
+            cfg.pool = new ForkJoinPool(cfg.threads);
+        try {
+            switch (cfg.method) {
+                case "vi":
+                    return cfg.prioritized ? prioritizedSweeping(g, cfg) : bellmanValueIteration(g, cfg);
+                case "mpi":
+                    return modifiedPolicyIteration(g, cfg);
+                default:
+                    return policyIteration(g, cfg);
+            }
+        } finally {
+            if (cfg.pool != null) {
+                cfg.pool.shutdown();
+                cfg.pool = null;
+            }
+        }
+    }
+
+    /**
+     * Solves every discount factor in cfg.dfs against the same graph
+     * The sorted list is cut into one contiguous chunk per thread, each chunk
+     * runs in order with every run warm started from the one before it, so
+     * neighbouring discount factors share work and the results do not depend
+     * on scheduling
+     * 
+     * @param g   graph created by loadGraph
+     * @param cfg parsed flags, -threads is spent on chunks rather than inside a run
+     * @return one solution per discount factor, same order as cfg.dfs
+     */
+    static Solution[] solveSweep(Graph g, Config cfg) throws InterruptedException, ExecutionException {
+        double[] dfs = cfg.dfs;
+        Solution[] sols = new Solution[dfs.length];
+        int chunks = Math.min(cfg.threads, dfs.length);
+
+        ExecutorService pool = Executors.newFixedThreadPool(chunks);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < chunks; c++) {
+                int from = (int) ((long) dfs.length * c / chunks);
+                int to = (int) ((long) dfs.length * (c + 1) / chunks);
+                futures.add(pool.submit(() -> {
+                    Solution prev = cfg.warm;
+                    for (int k = from; k < to; k++) {
+                        Config run = cfg.copy();
+                        run.df = dfs[k];
+                        run.threads = 1;
+                        run.metrics = null;
+                        run.warm = prev;
+                        sols[k] = solve(g, run);
+                        prev = sols[k];
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int k = 0; k < dfs.length; k++) {
+            if (!sols[k].converged) {
+                cfg.warnings.println("Warning: df " + dfs[k] + " stopped after " + sols[k].rounds
+                        + " iterations (-iter) before reaching -tol");
+            }
+            if (cfg.metrics != null)
+                cfg.metrics.summary(cfg.method + " df=" + trimDf(dfs[k]), sols[k]);
+        }
+        return sols;
+    }
+
+    /**
+     * Policy iteration, each policy is evaluated exactly (or to -tol for the
+     * sparse solver) and then improved greedily until it stops changing
+     * After the first round only nodes with an edge into a node whose value
+     * moved by more than -tol since it was last checked are re-checked, found
+     * through reverse edges. When that changes nothing a full greedy pass
+     * runs, and the loop stops once that changes no action either. An action
+     * is only replaced when another beats it by more than TIE_TOL, so
+     * near-ties don't flip back and forth on rounding noise
+     */
+    static Solution policyIteration(Graph g, Config cfg) {
+        // generate empty policy, or take the warm start's
+        Policy pi = startPolicy(g, cfg);
+        // iterative evaluation starts from the last values
+        double[] guess = (cfg.warm != null) ? cfg.warm.V : null;
+
+        // the dense solver keeps its factorization between rounds
+        DenseEvaluator dense = cfg.solver.equals("dense") ? new DenseEvaluator(g, cfg) : null;
+
+        Adjacency preds = predecessors(g);
+        // round a node was last queued for a re-check, so each is queued once per round
+        int[] queuedIn = new int[g.n];
+        int[] queue = new int[g.n];
+
+        // V[t] when t's predecessors were last re-checked, drift is measured from
+        // here rather than from the last round so small changes still add up
+        double[] checkedAt = null;
+
+        Solution sol = new Solution();
+        double[] prevV = null;
+        int safetyCap = 1000;
+        while (true) {
+            double[] V = (dense != null) ? dense.evaluate(pi) : valueIteration(g, pi, cfg, guess);
+            guess = V;
+            sol.rounds++;
+
+            Policy piPrime;
+            int changes;
+            if (checkedAt == null) {
+                piPrime = greedyPolicy(g, V, cfg, pi);
+                changes = piPrime.changesFrom(pi);
+                checkedAt = V.clone();
+            } else {
+                piPrime = pi.copy();
+                changes = 0;
+                int queued = 0;
+                for (int t = 0; t < g.n; t++) {
+                    if (Math.abs(V[t] - checkedAt[t]) <= cfg.tol)
+                        continue;
+                    checkedAt[t] = V[t];
+                    for (int e = preds.start[t]; e < preds.start[t + 1]; e++) {
+                        int s = preds.nodes[e];
+                        if (queuedIn[s] != sol.rounds && g.hasChoice(s)) {
+                            queuedIn[s] = sol.rounds;
+                            queue[queued++] = s;
+                        }
+                    }
+                }
+                for (int q = 0; q < queued; q++) {
+                    int s = queue[q];
+                    int a = greedyAction(g, V, s, cfg, piPrime.actionIndex[s]);
+                    if (a != piPrime.actionIndex[s]) {
+                        piPrime.actionIndex[s] = a;
+                        changes++;
+                    }
+                }
+                if (changes == 0) {
+                    // drift under tol on several successors can still add up, so
+                    // one full pass has to agree before the policy counts as stable
+                    piPrime = greedyPolicy(g, V, cfg, pi);
+                    changes = piPrime.changesFrom(pi);
+                    System.arraycopy(V, 0, checkedAt, 0, g.n);
+                }
+            }
+            if (cfg.metrics != null)
+                cfg.metrics.iteration("pi", sol.rounds, maxChange(prevV, V), changes);
+            prevV = V;
+
+            if (changes == 0 || safetyCap-- <= 0) {
+                sol.pi = piPrime;
+                sol.V = V;
+                return sol;
+            }
+            pi = piPrime;
+        }
+    }
+
+    /**
+     * Value iteration with in-place (Gauss-Seidel) Bellman backups
+     * Sweeps until values settle to -tol or -iter sweeps have run
+     */
+    static Solution bellmanValueIteration(Graph g, Config cfg) {
+        Sweeper sweeper = new Sweeper(startValues(g, cfg), cfg);
+        Solution sol = new Solution();
+        sol.converged = false;
+        double prevDelta = Double.POSITIVE_INFINITY;
+
+        while (sol.rounds < cfg.iter) {
+            double maxDelta = sweeper.sweep((V, s) -> bellmanBackup(g, V, s, cfg));
+            sol.rounds++;
+            if (cfg.metrics != null)
+                cfg.metrics.iteration("vi", sol.rounds, maxDelta, -1);
+            if (converged(maxDelta, prevDelta, cfg.tol)) {
+                sol.converged = true;
+                break;
+            }
+            prevDelta = maxDelta;
+        }
+
+        sol.V = sweeper.V;
+        sol.pi = greedyPolicy(g, sol.V, cfg);
+        return sol;
+    }
+
+    /**
+     * Value iteration that always backs up the state with the largest Bellman
+     * residual next, then rechecks only its predecessors
+     * Stops once no residual is over -tol, or after -iter sweeps worth of
+     * backups
+     */
+    static Solution prioritizedSweeping(Graph g, Config cfg) {
+        int n = g.n;
+        double[] V = startValues(g, cfg);
+        Adjacency preds = predecessors(g);
+        StateHeap heap = new StateHeap(n);
+
+        for (int s = 0; s < n; s++) {
+            double residual = Math.abs(bellmanBackup(g, V, s, cfg) - V[s]);
+            if (residual > cfg.tol)
+                heap.push(s, residual);
+        }
+
+        long budget = (long) cfg.iter * n;
+        long backups = 0;
+        while (!heap.isEmpty() && backups < budget) {
+            int s = heap.pop();
+            double popped = heap.key[s];
+            V[s] = bellmanBackup(g, V, s, cfg);
+            backups++;
+            // one record per n backups, using the residual of the backup that closed it
+            if (cfg.metrics != null && backups % n == 0)
+                cfg.metrics.iteration("vi-prioritized", (int) (backups / n), popped, -1);
+
+            for (int e = preds.start[s]; e < preds.start[s + 1]; e++) {
+                int p = preds.nodes[e];
+                double residual = Math.abs(bellmanBackup(g, V, p, cfg) - V[p]);
+                if (residual > cfg.tol)
+                    heap.push(p, residual);
+                else
+                    heap.remove(p);
+            }
+        }
+
+        Solution sol = new Solution();
+        sol.rounds = (int) ((backups + n - 1) / Math.max(1, n));
+        sol.converged = heap.isEmpty();
+        sol.V = V;
+        sol.pi = greedyPolicy(g, V, cfg);
+        return sol;
+    }
+
+    /**
+     * Modified policy iteration, improve the policy greedily then run only
+     * -sweeps in-place evaluation sweeps under it instead of a full solve
+     * Stops once the policy is stable and a sweep moves no value past -tol,
+     * or after -iter improvements
+     */
+    static Solution modifiedPolicyIteration(Graph g, Config cfg) {
+        Sweeper sweeper = new Sweeper(startValues(g, cfg), cfg);
+        Policy pi = startPolicy(g, cfg);
+        Solution sol = new Solution();
+        sol.converged = false;
+
+        while (sol.rounds < cfg.iter) {
+            Policy piPrime = greedyPolicy(g, sweeper.V, cfg);
+            boolean stable = sol.rounds > 0 && pi.equalsTo(piPrime);
+            int policyChanges = (cfg.metrics != null) ? piPrime.changesFrom(pi) : 0;
+            pi = piPrime;
+            sol.rounds++;
+
+            Policy current = pi;
+            double firstDelta = 0.0;
+            for (int k = 0; k < cfg.sweeps; k++) {
+                double maxDelta = sweeper.sweep((V, s) -> policyBackup(g, V, s, current, cfg));
+                if (k == 0)
+                    firstDelta = maxDelta;
+                if (maxDelta < cfg.tol)
+                    break;
+            }
+            if (cfg.metrics != null)
+                cfg.metrics.iteration("mpi", sol.rounds, firstDelta, policyChanges);
+            if (stable && firstDelta < cfg.tol) {
+                sol.converged = true;
+                break;
+            }
+        }
+
+        sol.V = sweeper.V;
+        sol.pi = pi;
+        return sol;
+    }
+
+    // new value of one node given the current values
+    interface Backup {
+        double apply(double[] V, int s);
+    }
+
+    // work on nodes [lo, hi), returns the largest value change (0 if there is none)
+    interface RangeBody {
+        double run(int lo, int hi);
+    }
+
+    // nodes per fork join leaf, small enough to balance and large enough to be worth a task
+    static final int PARALLEL_GRAIN = 2048;
+
+    // splits a node range in half until it is PARALLEL_GRAIN long, then max-reduces the results
+    static class RangeTask extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        final RangeBody body;
+        final int lo;
+        final int hi;
+
+        RangeTask(RangeBody body, int lo, int hi) {
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Double compute() {
+            if (hi - lo <= PARALLEL_GRAIN)
+                return body.run(lo, hi);
+            int mid = (lo + hi) >>> 1;
+            RangeTask left = new RangeTask(body, lo, mid);
+            left.fork();
+            double right = new RangeTask(body, mid, hi).compute();
+            return Math.max(left.join(), right);
+        }
+    }
+
+    /**
+     * Runs body over all n nodes, across cfg.pool when there is one
+     * max is exact, so the result does not depend on how the range was split
+     */
+    static double forRange(Config cfg, int n, RangeBody body) {
+        if (cfg.pool == null || n <= PARALLEL_GRAIN)
+            return body.run(0, n);
+        return cfg.pool.invoke(new RangeTask(body, 0, n));
+    }
+
+    // Value vector plus the update scheme from -update
+    // gs: in place and sequential, every backup sees the newest values
+    // jacobi: reads V and writes next then swaps, every node only sees the last
+    // sweep, so any split across threads gives the same bits as one thread
+    // async: in place with each block of nodes swept by its own worker,
+    // blocks read whatever their neighbours have written so far
+    static class Sweeper {
+        double[] V;
+        double[] next;
+        Config cfg;
+
+        Sweeper(double[] start, Config cfg) {
+            this.V = start;
+            this.cfg = cfg;
+            if (cfg.update.equals("jacobi"))
+                this.next = new double[start.length];
+        }
+
+        // one sweep over every node, returns the largest change
+        double sweep(Backup backup) {
+            double[] cur = V;
+            int n = cur.length;
+            if (next != null) {
+                double[] out = next;
+                double maxDelta = forRange(cfg, n, (lo, hi) -> {
+                    double max = 0.0;
+                    for (int s = lo; s < hi; s++) {
+                        out[s] = backup.apply(cur, s);
+                        max = Math.max(max, Math.abs(out[s] - cur[s]));
+                    }
+                    return max;
+                });
+                next = cur;
+                V = out;
+                return maxDelta;
+            }
+
+            RangeBody inPlace = (lo, hi) -> {
+                double max = 0.0;
+                for (int s = lo; s < hi; s++) {
+                    double value = backup.apply(cur, s);
+                    max = Math.max(max, Math.abs(value - cur[s]));
+                    cur[s] = value;
+                }
+                return max;
+            };
+            // stale or racing reads only slow async down, each value is still a valid backup
+            if (cfg.update.equals("async"))
+                return forRange(cfg, n, inPlace);
+            return inPlace.run(0, n);
+        }
+    }
+
+    /**
+     * Stopping rule shared by the iterative solvers
+     * The last change has to be under tol, and so does the remaining error
+     * estimated from how fast the changes are shrinking
+     * 
+     * @param maxDelta  largest change in the last sweep
+     * @param prevDelta largest change in the sweep before it
+     * @param tol       -tol
+     * @return true once the values have settled
+     */
+    static boolean converged(double maxDelta, double prevDelta, double tol) {
+        if (maxDelta == 0.0)
+            return true;
+        double rate = maxDelta / prevDelta;
+        double bound = (rate < 1.0) ? maxDelta * rate / (1.0 - rate) : Double.POSITIVE_INFINITY;
+        return maxDelta < tol && bound < tol;
+    }
+
+    /**
+     * Expected next value of taking an action at a decision node
+     * 
+     * @param g graph created by buildGraph
+     * @param V current values
+     * @param s decision node
+     * @param a index of the chosen edge
+     * @return expected value of the successor, before discount
+     */
+    static double actionValue(Graph g, double[] V, int s, int a) {
+        double sum = (g.success[s] == 1.0) ? 0.0 : successorSum(g, V, s);
+        return actionValue(g, V, s, a, sum);
+    }
+
+    /**
+     * Same, with the successor sum already worked out, O(1) per action
+     * The picked edge gets p and every other edge gets fail, so the value is
+     * p * V[a] + fail * (sum - V[a])
+     * 
+     * @param sum successorSum(g, V, s), unused when the node always succeeds
+     */
+    static double actionValue(Graph g, double[] V, int s, int a, double sum) {
+        double v = V[g.targets[g.offsets[s] + a]];
+        double p = g.success[s];
+        if (p == 1.0)
+            return v;
+        return p * v + g.fail[s] * (sum - v);
+    }
+
+    // sum of V over s's edges, a duplicate edge counts each time
+    static double successorSum(Graph g, double[] V, int s) {
+        double sum = 0.0;
+        for (int e = g.offsets[s]; e < g.offsets[s + 1]; e++)
+            sum += V[g.targets[e]];
+        return sum;
+    }
+
+    /**
+     * Expected next value of a node that has no choice to make
+     * 
+     * @return expected value of the successor before discount, 0 for terminals
+     */
+    static double forcedValue(Graph g, double[] V, int s) {
+        byte type = g.type[s];
+        if (type == Graph.TERMINAL)
+            return 0.0;
+        if (type == Graph.FORCED)
+            return V[g.targets[g.offsets[s]]];
+        double cont = 0.0;
+        for (int e = g.offsets[s]; e < g.offsets[s + 1]; e++)
+            cont += g.probs[e] * V[g.targets[e]];
+        return cont;
+    }
+
+    /**
+     * Bellman optimality backup, decision nodes take their best action
+     * 
+     * @return new value for s
+     */
+    static double bellmanBackup(Graph g, double[] V, int s, Config cfg) {
+        if (!g.hasChoice(s))
+            return g.reward[s] + cfg.df * forcedValue(g, V, s);
+
+        int deg = g.degree(s);
+        double sum = (g.success[s] == 1.0) ? 0.0 : successorSum(g, V, s);
+        double best = cfg.maximize ? -Double.MAX_VALUE : Double.MAX_VALUE;
+        for (int a = 0; a < deg; a++) {
+            double total = g.reward[s] + cfg.df * actionValue(g, V, s, a, sum);
+            if (cfg.maximize ? total > best : total < best)
+                best = total;
+        }
+        return best;
+    }
+
+    /**
+     * Backup under a fixed policy
+     * 
+     * @return new value for s
+     */
+    static double policyBackup(Graph g, double[] V, int s, Policy pi, Config cfg) {
+        if (!g.hasChoice(s))
+            return g.reward[s] + cfg.df * forcedValue(g, V, s);
+        int a = pi.actionIndex[s];
+        if (a < 0 || a >= g.degree(s))
+            a = 0;
+        return g.reward[s] + cfg.df * actionValue(g, V, s, a);
+    }
+
+    /**
+     * Largest change between two value vectors, for the metrics log
+     * 
+     * @return max |b[i] - a[i]|, infinite when there is no earlier vector
+     */
+    static double maxChange(double[] a, double[] b) {
+        if (a == null)
+            return Double.POSITIVE_INFINITY;
+        double max = 0.0;
+        for (int i = 0; i < b.length; i++)
+            max = Math.max(max, Math.abs(b[i] - a[i]));
+        return max;
+    }
+
+    /**
+     * Reverse adjacency, lists every node with an edge into t, highest first
+     * A node appears once per edge, so duplicate edges repeat it
+     */
+    static Adjacency predecessors(Graph g) {
+        int n = g.n;
+        Adjacency preds = new Adjacency();
+        preds.start = new int[n + 1];
+        for (int t : g.targets)
+            preds.start[t + 1]++;
+        for (int t = 0; t < n; t++)
+            preds.start[t + 1] += preds.start[t];
+        preds.nodes = new int[g.targets.length];
+        int[] fill = Arrays.copyOfRange(preds.start, 1, n + 1);
+        for (int s = 0; s < n; s++) {
+            for (int e = g.offsets[s]; e < g.offsets[s + 1]; e++)
+                preds.nodes[--fill[g.targets[e]]] = s;
+        }
+        return preds;
+    }
+
+    // Indexed max-heap of states keyed by residual, for prioritized sweeping
+    // pos[s] is where s sits in heap, -1 if it is not queued
+    static class StateHeap {
+        int[] heap;
+        int[] pos;
+        double[] key;
+        int size;
+
+        StateHeap(int n) {
+            heap = new int[n];
+            pos = new int[n];
+            key = new double[n];
+            Arrays.fill(pos, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        // adds s, or moves it if its key changed
+        void push(int s, double k) {
+            if (pos[s] < 0) {
+                heap[size] = s;
+                pos[s] = size++;
+                key[s] = k;
+                siftUp(pos[s]);
+            } else {
+                double old = key[s];
+                key[s] = k;
+                if (k > old)
+                    siftUp(pos[s]);
+                else
+                    siftDown(pos[s]);
+            }
+        }
+
+        int pop() {
+            int top = heap[0];
+            remove(top);
+            return top;
+        }
+
+        void remove(int s) {
+            int i = pos[s];
+            if (i < 0)
+                return;
+            int last = heap[--size];
+            pos[s] = -1;
+            if (i == size)
+                return;
+            heap[i] = last;
+            pos[last] = i;
+            siftUp(i);
+            siftDown(pos[last]);
+        }
+
+        void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (key[heap[parent]] >= key[heap[i]])
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1;
+                int largest = i;
+                if (l < size && key[heap[l]] > key[heap[largest]])
+                    largest = l;
+                if (l + 1 < size && key[heap[l + 1]] > key[heap[largest]])
+                    largest = l + 1;
+                if (largest == i)
+                    return;
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        void swap(int i, int j) {
+            int a = heap[i];
+            int b = heap[j];
+            heap[i] = b;
+            heap[j] = a;
+            pos[b] = i;
+            pos[a] = j;
+        }
+    }
+
     /**
      * Perform value iterations on the graph
      * 
@@ -386,269 +1965,918 @@ public class Markov {
      * @return
      */
     static double[] valueIteration(Graph g, Policy pi, Config cfg) {
-        int n = g.n;
-        double[][] P = buildTransitionUnderPolicy(g, pi);
+        return valueIteration(g, pi, cfg, null);
+    }
+
+    /**
+     * Same, with a starting guess for the iterative solvers
+     * 
+     * @param guess values to start SOR from, null for zeros, the exact solvers ignore it
+     */
+    static double[] valueIteration(Graph g, Policy pi, Config cfg, double[] guess) {
+        if (cfg.solver.equals("sor")) {
+            return sparseEvaluate(buildSparseTransition(g, pi), g.reward, guess, cfg);
+        }
+        if (cfg.solver.equals("auto")) {
+            return componentEvaluate(buildSparseTransition(g, pi), g.reward, guess, cfg);
+        }
+
+        return new DenseEvaluator(g, cfg).evaluate(pi);
+    }
 
-        // Build linear system: (I - df * P) * V = reward
-        double[][] A = new double[n][n];
-        double[] b = new double[n];
+    // LU factorization with partial pivoting, PA = LU, on a flat row major n x n array
+    // L has a unit diagonal and shares the array with U
+    // Factoring is blocked: a BLOCK wide panel is factored, then the rest of
+    // the matrix is updated one panel at a time, so the rows being read stay
+    // in cache, and zero multipliers (most of an MDP matrix) are skipped
+    static class DenseLU {
+        static final int BLOCK = 64;
 
-        for (int i = 0; i < n; i++) {
-            b[i] = g.reward[i];
-            for (int j = 0; j < n; j++) {
-                double pij = P[i][j];
-                A[i][j] = (i == j ? 1.0 : 0.0) - cfg.df * pij;
+        int n;
+        double[] lu;
+        int[] perm; // perm[i] is the original row now at row i
+        long ops; // multiply-adds the factorization took, far below n^3 / 3 when A is sparse
+
+        /**
+         * @param a n x n row major matrix, overwritten with the factors
+         * @param n size
+         * @return the factorization
+         */
+        static DenseLU factor(double[] a, int n) {
+            DenseLU f = new DenseLU();
+            f.n = n;
+            f.lu = a;
+            f.perm = new int[n];
+            for (int i = 0; i < n; i++)
+                f.perm[i] = i;
+
+            for (int kb = 0; kb < n; kb += BLOCK) {
+                int ke = Math.min(kb + BLOCK, n);
+
+                // factor the panel, columns kb .. ke
+                for (int k = kb; k < ke; k++) {
+                    int pivot = k;
+                    double maxAbs = Math.abs(a[k * n + k]);
+                    for (int i = k + 1; i < n; i++) {
+                        double val = Math.abs(a[i * n + k]);
+                        if (val > maxAbs) {
+                            maxAbs = val;
+                            pivot = i;
+                        }
+                    }
+                    if (pivot != k)
+                        f.swapRows(k, pivot);
+
+                    double pivotVal = a[k * n + k];
+                    if (Math.abs(pivotVal) < 1e-12) {
+                        throw new RuntimeException("Singular matrix in DenseLU");
+                    }
+                    double inv = 1.0 / pivotVal;
+                    int rowK = k * n;
+                    for (int i = k + 1; i < n; i++) {
+                        int rowI = i * n;
+                        if (a[rowI + k] == 0.0)
+                            continue;
+                        double l = a[rowI + k] * inv;
+                        a[rowI + k] = l;
+                        f.ops += ke - k;
+                        for (int j = k + 1; j < ke; j++)
+                            a[rowI + j] -= l * a[rowK + j];
+                    }
+                }
+                if (ke == n)
+                    break;
+
+                // U12, the panel's rows right of the panel, forward substitution with the unit L11
+                for (int k = kb; k < ke; k++) {
+                    int rowK = k * n;
+                    for (int i = k + 1; i < ke; i++) {
+                        int rowI = i * n;
+                        double l = a[rowI + k];
+                        if (l == 0.0)
+                            continue;
+                        f.ops += n - ke;
+                        for (int j = ke; j < n; j++)
+                            a[rowI + j] -= l * a[rowK + j];
+                    }
+                }
+
+                // A22 -= L21 * U12, in column strips so the U12 strip stays in cache
+                for (int jb = ke; jb < n; jb += 4 * BLOCK) {
+                    int je = Math.min(jb + 4 * BLOCK, n);
+                    for (int i = ke; i < n; i++) {
+                        int rowI = i * n;
+                        for (int k = kb; k < ke; k++) {
+                            double l = a[rowI + k];
+                            if (l == 0.0)
+                                continue;
+                            int rowK = k * n;
+                            f.ops += je - jb;
+                            for (int j = jb; j < je; j++)
+                                a[rowI + j] -= l * a[rowK + j];
+                        }
+                    }
+                }
             }
+            return f;
         }
 
-        System.err.println("df = " + cfg.df);
-        int idxA = -1, idxQ = -1, idxB = -1;
-        for (int i = 0; i < n; i++) {
-            if (g.names[i].equals("A"))
-                idxA = i;
-            if (g.names[i].equals("Q"))
-                idxQ = i;
-            if (g.names[i].equals("B"))
-                idxB = i;
-        }
-        System.err.println("Row A of (I - df P): " + Arrays.toString(A[idxA]));
-        System.err.println("b[A] (reward A): " + b[idxA]);
-        System.err.println("Row B of (I - df P): " + Arrays.toString(A[idxB]));
-        System.err.println("b[B] (reward B): " + b[idxB]);
-        // Solve A * x = b via Gaussian elimination with partial pivoting
-        double[] x = gaussianSolve(A, b);
-        System.err.println("Residuals (A x - b):");
-        for (int i = 0; i < n; i++) {
-            double lhs = 0.0;
+        void swapRows(int r1, int r2) {
+            int o1 = r1 * n;
+            int o2 = r2 * n;
             for (int j = 0; j < n; j++) {
-                lhs += A[i][j] * x[j];
+                double tmp = lu[o1 + j];
+                lu[o1 + j] = lu[o2 + j];
+                lu[o2 + j] = tmp;
             }
-            double r_i = lhs - b[i];
-            System.err.printf("  %s : %.6f%n", g.names[i], r_i);
+            int tmp = perm[r1];
+            perm[r1] = perm[r2];
+            perm[r2] = tmp;
         }
-        return x;
-    }
 
-    // Solve A x = b for a dense n x n matrix A using Gaussian elimination
-    static double[] gaussianSolve(double[][] A, double[] b) {
-        int n = A.length;
-        double[][] a = new double[n][n];
-        double[] x = new double[n];
-        double[] rhs = new double[n];
+        /**
+         * @param b right hand side, not modified
+         * @return x with A x = b
+         */
+        double[] solve(double[] b) {
+            double[] x = new double[n];
+            for (int i = 0; i < n; i++)
+                x[i] = b[perm[i]];
+            for (int i = 0; i < n; i++) {
+                int row = i * n;
+                double sum = x[i];
+                for (int j = 0; j < i; j++)
+                    sum -= lu[row + j] * x[j];
+                x[i] = sum;
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                int row = i * n;
+                double sum = x[i];
+                for (int j = i + 1; j < n; j++)
+                    sum -= lu[row + j] * x[j];
+                x[i] = sum / lu[row + i];
+            }
+            return x;
+        }
+    }
 
-        // Copy inputs to avoid mutating original arrays
-        for (int i = 0; i < n; i++) {
-            rhs[i] = b[i];
-            System.arraycopy(A[i], 0, a[i], 0, n);
+    // refactor once more than 1/SMW_FRACTION of the rows differ from the factored policy
+    static final int SMW_FRACTION = 8;
+
+    // Exact dense policy evaluation that reuses one LU across policy iteration rounds
+    // A policy change only replaces the rows of the nodes whose action moved,
+    // A = A0 + U D with U the k changed unit columns and D the row differences,
+    // so Sherman-Morrison-Woodbury gives
+    // x = y - Z (I + D Z)^-1 D y, y = A0^-1 r, Z = A0^-1 U
+    // Z's columns only depend on which rows changed, not on the new rows, so
+    // each is solved once and kept, a round costs O(n^2) per newly changed
+    // row plus O(k^3) instead of a full O(n^3) factorization
+    // MDP matrices are mostly zeros and the LU skips them, so the update is
+    // only used while its new columns cost fewer operations than the last
+    // factorization did
+    static class DenseEvaluator {
+        Graph g;
+        Config cfg;
+        int n;
+        Policy basePi; // policy A0 was built from
+        DenseLU base;
+        double[] baseY; // A0^-1 reward
+        double[][] zCol; // A0^-1 e_r, filled in as rows change
+        double[] rowNew;
+        double[] rowOld;
+
+        DenseEvaluator(Graph g, Config cfg) {
+            if ((long) g.n * g.n > Integer.MAX_VALUE - 8)
+                throw new RuntimeException("Graph is too large for the dense solver, use -solver auto or sor");
+            this.g = g;
+            this.cfg = cfg;
+            this.n = g.n;
         }
 
-        // Forward elimination with partial pivoting
-        for (int k = 0; k < n; k++) {
-            // Find pivot row
-            int pivot = k;
-            double maxAbs = Math.abs(a[k][k]);
-            for (int i = k + 1; i < n; i++) {
-                double val = Math.abs(a[i][k]);
-                if (val > maxAbs) {
-                    maxAbs = val;
-                    pivot = i;
+        double[] evaluate(Policy pi) {
+            if (base == null)
+                return refactor(pi);
+
+            int k = 0;
+            int[] changed = new int[n];
+            for (int s = 0; s < n; s++) {
+                if (pi.actionIndex[s] != basePi.actionIndex[s])
+                    changed[k++] = s;
+            }
+            if (k == 0)
+                return checked(pi, baseY.clone());
+            if (k * SMW_FRACTION > n)
+                return refactor(pi);
+            long fresh = 0;
+            for (int i = 0; i < k; i++) {
+                if (zCol[changed[i]] == null)
+                    fresh++;
+            }
+            if (fresh * n * n > base.ops)
+                return refactor(pi);
+
+            // D is sparse, a row differs from A0 only on its own column and its edges
+            int[][] cols = new int[k][];
+            double[][] diff = new double[k][];
+            for (int i = 0; i < k; i++) {
+                int r = changed[i];
+                systemRow(g, pi, r, cfg.df, rowNew, 0);
+                systemRow(g, basePi, r, cfg.df, rowOld, 0);
+                int deg = g.degree(r);
+                cols[i] = new int[deg + 1];
+                diff[i] = new double[deg + 1];
+                cols[i][0] = r;
+                System.arraycopy(g.targets, g.offsets[r], cols[i], 1, deg);
+                for (int e = 0; e < cols[i].length; e++) {
+                    int c = cols[i][e];
+                    diff[i][e] = rowNew[c] - rowOld[c];
+                    // zero so a repeated column only counts once
+                    rowNew[c] = 0.0;
+                    rowOld[c] = 0.0;
+                }
+                if (zCol[r] == null) {
+                    double[] unit = new double[n];
+                    unit[r] = 1.0;
+                    zCol[r] = base.solve(unit);
                 }
             }
 
-            // Swap rows if needed
-            if (pivot != k) {
-                double[] tmpRow = a[k];
-                a[k] = a[pivot];
-                a[pivot] = tmpRow;
-
-                double tmpVal = rhs[k];
-                rhs[k] = rhs[pivot];
-                rhs[pivot] = tmpVal;
+            // S = I + D Z and t = D y, both k x k / k
+            double[] S = new double[k * k];
+            double[] t = new double[k];
+            for (int i = 0; i < k; i++) {
+                for (int e = 0; e < cols[i].length; e++) {
+                    int c = cols[i][e];
+                    double d = diff[i][e];
+                    if (d == 0.0)
+                        continue;
+                    t[i] += d * baseY[c];
+                    for (int j = 0; j < k; j++)
+                        S[i * k + j] += d * zCol[changed[j]][c];
+                }
+                S[i * k + i] += 1.0;
             }
 
-            double pivotVal = a[k][k];
-            if (Math.abs(pivotVal) < 1e-12) {
-                throw new RuntimeException("Singular matrix in gaussianSolve");
+            double[] u;
+            try {
+                u = DenseLU.factor(S, k).solve(t);
+            } catch (RuntimeException e) {
+                // the update is (nearly) singular even if A is not, start over from A
+                return refactor(pi);
             }
 
-            // Normalize pivot row
-            for (int j = k; j < n; j++) {
-                a[k][j] /= pivotVal;
+            double[] x = baseY.clone();
+            for (int j = 0; j < k; j++) {
+                double[] z = zCol[changed[j]];
+                double uj = u[j];
+                for (int c = 0; c < n; c++)
+                    x[c] -= z[c] * uj;
             }
-            rhs[k] /= pivotVal;
+            return checked(pi, x);
+        }
 
-            // Eliminate below
-            for (int i = k + 1; i < n; i++) {
-                double factor = a[i][k];
-                if (factor == 0.0)
-                    continue;
-                for (int j = k; j < n; j++) {
-                    a[i][j] -= factor * a[k][j];
-                }
-                rhs[i] -= factor * rhs[k];
-            }
+        // factors (I - df P) for pi and makes it the new base
+        double[] refactor(Policy pi) {
+            double[] a = new double[n * n];
+            for (int s = 0; s < n; s++)
+                systemRow(g, pi, s, cfg.df, a, s * n);
+            base = DenseLU.factor(a, n);
+            basePi = pi.copy();
+            baseY = base.solve(g.reward);
+            zCol = new double[n][];
+            rowNew = new double[n];
+            rowOld = new double[n];
+            return checked(pi, baseY.clone());
         }
 
-        // Back substitution
-        for (int i = n - 1; i >= 0; i--) {
-            double sum = rhs[i];
-            for (int j = i + 1; j < n; j++) {
-                sum -= a[i][j] * x[j];
+        // residual max |(I - df P) x - r| for -metrics, O(n^2) so only when asked
+        double[] checked(Policy pi, double[] x) {
+            if (cfg.metrics == null)
+                return x;
+            double[] row = new double[n];
+            double residual = 0.0;
+            for (int i = 0; i < n; i++) {
+                systemRow(g, pi, i, cfg.df, row, 0);
+                double lhs = 0.0;
+                for (int j = 0; j < n; j++)
+                    lhs += row[j] * x[j];
+                residual = Math.max(residual, Math.abs(lhs - g.reward[i]));
             }
-            x[i] = sum;
+            cfg.metrics.solveResidual(residual);
+            return x;
         }
+    }
 
-        return x;
+    /**
+     * Row s of (I - df * P) under a policy
+     * 
+     * @param out row is written to out[off .. off + n), anything there is overwritten
+     */
+    static void systemRow(Graph g, Policy pi, int s, double df, double[] out, int off) {
+        Arrays.fill(out, off, off + g.n, 0.0);
+        transitionRow(g, pi, s, out, off);
+        for (int j = off; j < off + g.n; j++)
+            out[j] = -df * out[j];
+        out[off + s] += 1.0;
     }
 
-    static double[][] buildTransitionUnderPolicy(Graph g, Policy pi) {
-        int n = g.n;
-        double[][] P = new double[n][n];
+    // dense O(k^3) solve is fine for small components, past that the sparse one wins
+    static final int DENSE_LIMIT = 1000;
+    // sweep cap for the iterative solver, hitting it means the system diverges
+    static final int SPARSE_SWEEP_CAP = 1_000_000;
+    // a sweep changing values this many times more than the smallest sweep so
+    // far means SOR is blowing up (omega too large) rather than converging
+    static final double SPARSE_GROWTH_CAP = 1e6;
 
-        for (int s = 0; s < n; s++) {
-            if (g.isTerminal[s]) {
-                // Terminal, no future transitions so pass
+    /**
+     * Tarjan's SCC algorithm with an explicit stack, so long chains can't
+     * overflow the call stack
+     * Entries with probability 0 are not edges
+     *
+     * @param P transition matrix under the policy
+     * @return components in reverse topological order
+     */
+    static Components stronglyConnected(SparseMatrix P) {
+        int n = P.n;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int sp = 0;
+        // simulated recursion, the node and the next edge to look at per level
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        Arrays.fill(index, -1);
+
+        Components c = new Components();
+        c.start = new int[n + 1];
+        c.nodes = new int[n];
+        int counter = 0;
+        int filled = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0)
                 continue;
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            callNode[0] = root;
+            callEdge[0] = P.rowStart[root];
+            int depth = 1;
+
+            while (depth > 0) {
+                int v = callNode[depth - 1];
+                int e = callEdge[depth - 1];
+                if (e < P.rowStart[v + 1]) {
+                    callEdge[depth - 1]++;
+                    if (P.vals[e] == 0.0)
+                        continue;
+                    int w = P.cols[e];
+                    if (index[w] < 0) {
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callNode[depth] = w;
+                        callEdge[depth] = P.rowStart[w];
+                        depth++;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                } else {
+                    depth--;
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--sp];
+                            onStack[w] = false;
+                            c.nodes[filled++] = w;
+                        } while (w != v);
+                        c.start[++c.count] = filled;
+                    }
+                    if (depth > 0) {
+                        int parent = callNode[depth - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                }
             }
+        }
+        return c;
+    }
 
-            int[] outs = g.edges[s];
-            if (outs == null || outs.length == 0)
+    /**
+     * Solves (I - df * P) V = reward one strongly connected component at a
+     * time, successors first
+     * A single node is direct back-substitution, larger components get their
+     * own dense solve (or SOR past DENSE_LIMIT) with the already known values
+     * moved to the right hand side, so a mostly acyclic graph costs O(edges)
+     * instead of O(n^3)
+     *
+     * @param P      transition matrix under the policy
+     * @param reward reward per node
+     * @param guess  starting values for components solved with SOR, may be null
+     * @param cfg    uses df, and tol/omega for large components
+     * @return values under the policy
+     */
+    static double[] componentEvaluate(SparseMatrix P, double[] reward, double[] guess, Config cfg) {
+        int n = P.n;
+        double[] x = new double[n];
+        Components comps = stronglyConnected(P);
+        // position of a node inside the component being solved, -1 elsewhere
+        int[] local = new int[n];
+        Arrays.fill(local, -1);
+        int largest = 0;
+
+        for (int c = 0; c < comps.count; c++) {
+            int from = comps.start[c];
+            int k = comps.start[c + 1] - from;
+            largest = Math.max(largest, k);
+
+            if (k == 1) {
+                int s = comps.nodes[from];
+                double sum = reward[s];
+                double self = 0.0;
+                for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++) {
+                    if (P.cols[e] == s)
+                        self += P.vals[e];
+                    else
+                        sum += cfg.df * P.vals[e] * x[P.cols[e]];
+                }
+                double diag = 1.0 - cfg.df * self;
+                if (Math.abs(diag) < 1e-12) {
+                    throw new RuntimeException("Singular matrix in componentEvaluate");
+                }
+                x[s] = sum / diag;
                 continue;
+            }
 
-            if (g.forcedForSingleEdge[s]) {
-                int t = outs[0];
-                P[s][t] = 1.0;
-                continue;
+            for (int i = 0; i < k; i++)
+                local[comps.nodes[from + i]] = i;
+
+            // right hand side, reward plus the discounted values leaving the component
+            double[] b = new double[k];
+            int inside = 0;
+            for (int i = 0; i < k; i++) {
+                int s = comps.nodes[from + i];
+                b[i] = reward[s];
+                for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++) {
+                    if (local[P.cols[e]] < 0)
+                        b[i] += cfg.df * P.vals[e] * x[P.cols[e]];
+                    else
+                        inside++;
+                }
             }
 
-            if (g.isChance[s]) {
-                double[] probs = g.probsRaw[s];
-                for (int k = 0; k < outs.length; k++) {
-                    P[s][outs[k]] += probs[k];
+            double[] xc;
+            if (k <= DENSE_LIMIT) {
+                double[] A = new double[k * k];
+                for (int i = 0; i < k; i++) {
+                    int s = comps.nodes[from + i];
+                    A[i * k + i] = 1.0;
+                    for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++) {
+                        int j = local[P.cols[e]];
+                        if (j >= 0)
+                            A[i * k + j] -= cfg.df * P.vals[e];
+                    }
+                }
+                xc = DenseLU.factor(A, k).solve(b);
+            } else {
+                SparseMatrix Pc = new SparseMatrix();
+                Pc.n = k;
+                Pc.rowStart = new int[k + 1];
+                Pc.cols = new int[inside];
+                Pc.vals = new double[inside];
+                int at = 0;
+                for (int i = 0; i < k; i++) {
+                    int s = comps.nodes[from + i];
+                    for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++) {
+                        int j = local[P.cols[e]];
+                        if (j >= 0) {
+                            Pc.cols[at] = j;
+                            Pc.vals[at++] = P.vals[e];
+                        }
+                    }
+                    Pc.rowStart[i + 1] = at;
                 }
-            } else if (g.isDecision[s]) {
+                double[] start = null;
+                if (guess != null) {
+                    start = new double[k];
+                    for (int i = 0; i < k; i++)
+                        start[i] = guess[comps.nodes[from + i]];
+                }
+                xc = sparseEvaluate(Pc, b, start, cfg);
+            }
+
+            for (int i = 0; i < k; i++) {
+                int s = comps.nodes[from + i];
+                x[s] = xc[i];
+                local[s] = -1;
+            }
+        }
+
+        if (cfg.metrics != null)
+            cfg.metrics.components(comps.count, largest);
+        return x;
+    }
+
+    /**
+     * Transition matrix under a policy, stored sparse
+     * Same entries as buildTransitionUnderPolicy, one per edge
+     *
+     * @param g  graph created by buildGraph
+     * @param pi policy to follow at decision nodes
+     * @return P in CSR form, duplicate edges stay as separate entries
+     */
+    static SparseMatrix buildSparseTransition(Graph g, Policy pi) {
+        int n = g.n;
+        SparseMatrix P = new SparseMatrix();
+        P.n = n;
+        P.rowStart = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            int count;
+            byte type = g.type[s];
+            if (type == Graph.TERMINAL)
+                count = 0;
+            else if (type == Graph.FORCED || (type == Graph.DECISION && g.success[s] == 1.0))
+                count = 1;
+            else
+                count = g.degree(s);
+            P.rowStart[s + 1] = P.rowStart[s] + count;
+        }
+
+        P.cols = new int[P.rowStart[n]];
+        P.vals = new double[P.rowStart[n]];
+        for (int s = 0; s < n; s++) {
+            int at = P.rowStart[s];
+            if (P.rowStart[s + 1] == at)
+                continue;
+            int from = g.offsets[s];
+            int deg = g.degree(s);
+
+            if (g.type[s] == Graph.FORCED) {
+                P.cols[at] = g.targets[from];
+                P.vals[at] = 1.0;
+            } else if (g.type[s] == Graph.CHANCE) {
+                System.arraycopy(g.targets, from, P.cols, at, deg);
+                System.arraycopy(g.probs, from, P.vals, at, deg);
+            } else if (g.type[s] == Graph.DECISION) {
                 int a = pi.actionIndex[s];
-                if (a < 0 || a >= outs.length) {
-                    // If policy not set then skip
+                if (a < 0 || a >= deg)
                     a = 0;
-                }
-                if (g.probsRaw[s] == null) {
-                    // Deterministic to chosen action (p=1)
-                    P[s][outs[a]] = 1.0;
+                double p = g.success[s];
+                if (p == 1.0) {
+                    P.cols[at] = g.targets[from + a];
+                    P.vals[at] = 1.0;
                 } else {
-                    // Success prob p; failures split among others
-                    double p = g.probsRaw[s][0];
-                    int deg = outs.length;
-                    double fail = (deg > 1) ? (1.0 - p) / (deg - 1) : 0.0;
                     for (int k = 0; k < deg; k++) {
-                        P[s][outs[k]] = (k == a) ? p : fail;
+                        P.cols[at + k] = g.targets[from + k];
+                        P.vals[at + k] = (k == a) ? p : g.fail[s];
                     }
                 }
             } else {
-                // if reached invalid node
-                throw new RuntimeException("Invalid node classification at " + g.names[s]);
+                throw new RuntimeException("Invalid node classification at " + g.name(s));
             }
         }
         return P;
     }
 
-    static Policy greedyPolicy(Graph g, double[] V, Config cfg) {
-        Policy pi = new Policy(g.n);
+    /**
+     * Solves (I - df * P) V = reward with SOR sweeps (Gauss-Seidel when omega
+     * is 1), O(edges) per sweep and no dense matrix
+     * Stops once a sweep moves no value by more than tol and the error bound
+     * estimated from the rate the sweeps shrink is also under tol, so slow
+     * converging chains don't stop early
+     *
+     * @param P      transition matrix under the policy
+     * @param reward reward per node
+     * @param guess  values to start from, null for zeros
+     * @param cfg    uses df, tol and omega
+     * @return values under the policy
+     */
+    static double[] sparseEvaluate(SparseMatrix P, double[] reward, double[] guess, Config cfg) {
+        int n = P.n;
+        // without discounting a closed set of nodes makes I - P singular, sweeps
+        // would just keep adding its rewards, so fail before the first one
+        if (cfg.df == 1.0 && closedNode(P) >= 0)
+            throw new RuntimeException("Singular matrix in sparseEvaluate, df is 1 and some nodes never reach a terminal");
+
+        double[] x = (guess != null) ? guess.clone() : new double[n];
+        double prevDelta = Double.POSITIVE_INFINITY;
+        double minDelta = Double.POSITIVE_INFINITY;
+
+        for (int sweep = 0; sweep < SPARSE_SWEEP_CAP; sweep++) {
+            double maxDelta = 0.0;
+            for (int s = 0; s < n; s++) {
+                double sum = reward[s];
+                double self = 0.0;
+                for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++) {
+                    int t = P.cols[e];
+                    if (t == s)
+                        self += P.vals[e];
+                    else
+                        sum += cfg.df * P.vals[e] * x[t];
+                }
+                double diag = 1.0 - cfg.df * self;
+                if (Math.abs(diag) < 1e-12) {
+                    throw new RuntimeException("Singular matrix in sparseEvaluate");
+                }
+                double next = x[s] + cfg.omega * (sum / diag - x[s]);
+                maxDelta = Math.max(maxDelta, Math.abs(next - x[s]));
+                x[s] = next;
+            }
 
-        for (int s = 0; s < g.n; s++) {
-            if (g.isTerminal[s]) {
-                pi.actionIndex[s] = -1;
-                continue;
+            if (converged(maxDelta, prevDelta, cfg.tol))
+                return x;
+            minDelta = Math.min(minDelta, maxDelta);
+            if (!(maxDelta <= SPARSE_GROWTH_CAP * minDelta))
+                throw new RuntimeException("Policy evaluation diverges in sparseEvaluate, try a smaller -omega");
+            prevDelta = maxDelta;
+        }
+        throw new RuntimeException("Policy evaluation did not converge in sparseEvaluate");
+    }
+
+    /**
+     * Finds a node whose probability never leaves P, following edges from it
+     * only reaches rows that sum to 1. Rows summing to less are terminals or,
+     * for a component, nodes with edges out of it.
+     * Searches back from those rows over reversed edges, O(edges)
+     *
+     * @return a node that can't reach such a row, -1 if every node can
+     */
+    static int closedNode(SparseMatrix P) {
+        int n = P.n;
+        int[] start = new int[n + 1];
+        for (int e = 0; e < P.rowStart[n]; e++) {
+            if (P.vals[e] > 0)
+                start[P.cols[e] + 1]++;
+        }
+        for (int t = 0; t < n; t++)
+            start[t + 1] += start[t];
+        int[] from = new int[start[n]];
+        int[] fill = Arrays.copyOf(start, n);
+        for (int s = 0; s < n; s++) {
+            for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++) {
+                if (P.vals[e] > 0)
+                    from[fill[P.cols[e]]++] = s;
             }
-            if (g.forcedForSingleEdge[s]) {
-                pi.actionIndex[s] = -1;
-                continue;
+        }
+
+        boolean[] leaks = new boolean[n];
+        int[] queue = new int[n];
+        int tail = 0;
+        for (int s = 0; s < n; s++) {
+            double sum = 0.0;
+            for (int e = P.rowStart[s]; e < P.rowStart[s + 1]; e++)
+                sum += P.vals[e];
+            if (sum < 1.0 - 1e-12) {
+                leaks[s] = true;
+                queue[tail++] = s;
             }
-            if (g.isChance[s]) {
-                pi.actionIndex[s] = -1;
-                continue;
+        }
+        for (int head = 0; head < tail; head++) {
+            int t = queue[head];
+            for (int e = start[t]; e < start[t + 1]; e++) {
+                int s = from[e];
+                if (!leaks[s]) {
+                    leaks[s] = true;
+                    queue[tail++] = s;
+                }
             }
+        }
 
-            if (g.isDecision[s]) {
-                int[] outs = g.edges[s];
-                if (outs.length == 0) {
-                    pi.actionIndex[s] = -1;
-                    continue;
+        for (int s = 0; s < n; s++) {
+            if (!leaks[s])
+                return s;
+        }
+        return -1;
+    }
+
+    // Solve A x = b for a dense n x n matrix A using Gaussian elimination (LU
+    // with partial pivoting), A and b are left as they were
+    static double[] gaussianSolve(double[][] A, double[] b) {
+        int n = A.length;
+        double[] a = new double[n * n];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(A[i], 0, a, i * n, n);
+        return DenseLU.factor(a, n).solve(b);
+    }
+
+    static double[][] buildTransitionUnderPolicy(Graph g, Policy pi) {
+        int n = g.n;
+        double[][] P = new double[n][n];
+        for (int s = 0; s < n; s++)
+            transitionRow(g, pi, s, P[s], 0);
+        return P;
+    }
+
+    // row s of the transition matrix, written into a zeroed out[off .. off + n)
+    static void transitionRow(Graph g, Policy pi, int s, double[] out, int off) {
+        byte type = g.type[s];
+        if (type == Graph.TERMINAL) {
+            // Terminal, no future transitions so pass
+            return;
+        }
+
+        int from = g.offsets[s];
+        int deg = g.degree(s);
+        if (type == Graph.FORCED) {
+            int t = g.targets[from];
+            out[off + t] = 1.0;
+            return;
+        }
+
+        if (type == Graph.CHANCE) {
+            for (int k = 0; k < deg; k++) {
+                out[off + g.targets[from + k]] += g.probs[from + k];
+            }
+        } else if (type == Graph.DECISION) {
+            int a = pi.actionIndex[s];
+            if (a < 0 || a >= deg) {
+                // If policy not set then skip
+                a = 0;
+            }
+            double p = g.success[s];
+            if (p == 1.0) {
+                // Deterministic to chosen action (p=1)
+                out[off + g.targets[from + a]] = 1.0;
+            } else {
+                // Success prob p; failures split among others, a target listed
+                // twice gets both shares like in the sparse matrix
+                for (int k = 0; k < deg; k++) {
+                    out[off + g.targets[from + k]] += (k == a) ? p : g.fail[s];
                 }
+            }
+        } else {
+            // if reached invalid node
+            throw new RuntimeException("Invalid node classification at " + g.name(s));
+        }
+    }
 
-                // Evaluate each action's value v(s)
-                int bestA = 0;
-                double bestVal = cfg.maximize ? -Double.MAX_VALUE : Double.MAX_VALUE;
-
-                for (int a = 0; a < outs.length; a++) {
-                    double cont = 0.0;
-                    if (g.probsRaw[s] == null) {
-                        cont = V[outs[a]];
-                    } else {
-                        double p = g.probsRaw[s][0];
-                        int deg = outs.length;
-                        double fail = (deg > 1) ? (1.0 - p) / (deg - 1) : 0.0;
-                        for (int k = 0; k < deg; k++) {
-                            double pk = (k == a) ? p : fail;
-                            cont += pk * V[outs[k]];
-                        }
-                    }
-                    double total = g.reward[s] + (cfg.df * cont);
-                    if (cfg.maximize) {
-                        if (total > bestVal) {
-                            bestVal = total;
-                            bestA = a;
-                        }
-                    } else {
-                        if (total < bestVal) {
-                            bestVal = total;
-                            bestA = a;
-                        }
-                    }
+    static Policy greedyPolicy(Graph g, double[] V, Config cfg) {
+        return greedyPolicy(g, V, cfg, null);
+    }
+
+    // greedy policy that keeps current's action wherever nothing clearly beats it
+    static Policy greedyPolicy(Graph g, double[] V, Config cfg, Policy current) {
+        Policy pi = new Policy(g.n);
+
+        // each node only writes its own slot, so the split does not change the result
+        forRange(cfg, g.n, (lo, hi) -> {
+            for (int s = lo; s < hi; s++)
+                pi.actionIndex[s] = greedyAction(g, V, s, cfg, (current != null) ? current.actionIndex[s] : -1);
+            return 0.0;
+        });
+
+        return pi;
+    }
+
+    // how much better, relative to max(1, |value|), an action has to be to replace
+    // the current one, near-tied actions would otherwise swap on rounding noise
+    // every time the policy is evaluated again
+    static final double TIE_TOL = 1e-12;
+
+    static int greedyAction(Graph g, double[] V, int s, Config cfg) {
+        return greedyAction(g, V, s, cfg, -1);
+    }
+
+    // best edge at a decision node, -1 for nodes without a choice
+    // current is kept unless another edge beats it by more than TIE_TOL, -1 for no current action
+    static int greedyAction(Graph g, double[] V, int s, Config cfg, int current) {
+        // terminal, chance and forced single-edge nodes have nothing to pick
+        if (!g.hasChoice(s))
+            return -1;
+
+        // Evaluate each action's value v(s), the successor sum is shared so
+        // this is O(deg) rather than O(deg^2)
+        int deg = g.degree(s);
+        double sum = (g.success[s] == 1.0) ? 0.0 : successorSum(g, V, s);
+        int bestA = 0;
+        double bestVal = cfg.maximize ? -Double.MAX_VALUE : Double.MAX_VALUE;
+        double currentVal = 0.0;
+
+        for (int a = 0; a < deg; a++) {
+            double cont = actionValue(g, V, s, a, sum);
+            double total = g.reward[s] + (cfg.df * cont);
+            if (a == current)
+                currentVal = total;
+            if (cfg.maximize) {
+                if (total > bestVal) {
+                    bestVal = total;
+                    bestA = a;
                 }
-                pi.actionIndex[s] = bestA;
             } else {
-                pi.actionIndex[s] = -1;
+                if (total < bestVal) {
+                    bestVal = total;
+                    bestA = a;
+                }
             }
         }
+        if (current >= 0 && current < deg) {
+            double margin = TIE_TOL * Math.max(1.0, Math.abs(currentVal));
+            if (cfg.maximize ? bestVal <= currentVal + margin : bestVal >= currentVal - margin)
+                return current;
+        }
+        return bestA;
+    }
 
-        return pi;
+    /**
+     * Prints a -dfs sweep as two tables, one column per discount factor
+     * Policy rows are the decision nodes, value rows are every node
+     */
+    static void printSweepTable(Graph g, double[] dfs, Solution[] sols, PrintStream out) {
+        int width = 2;
+        for (int s = 0; s < g.n; s++)
+            width = Math.max(width, g.nameStart[s + 1] - g.nameStart[s]);
+        int col = 8;
+        for (int s = 0; s < g.n; s++) {
+            for (Solution sol : sols)
+                col = Math.max(col, String.format(Locale.ROOT, "%.3f", sol.V[s]).length() + 2);
+            if (g.hasChoice(s)) {
+                for (int e = g.offsets[s]; e < g.offsets[s + 1]; e++) {
+                    int t = g.targets[e];
+                    col = Math.max(col, g.nameStart[t + 1] - g.nameStart[t] + 2);
+                }
+            }
+        }
+
+        StringBuilder header = new StringBuilder(String.format("  %-" + width + "s", "df"));
+        for (double df : dfs)
+            header.append(String.format("%" + col + "s", trimDf(df)));
+
+        boolean hasPolicy = false;
+        for (int s = 0; s < g.n; s++) {
+            if (g.hasChoice(s)) {
+                hasPolicy = true;
+                break;
+            }
+        }
+
+        if (hasPolicy) {
+            out.println("Optimal Policy:");
+            out.println(header);
+            for (int s = 0; s < g.n; s++) {
+                if (!g.hasChoice(s))
+                    continue;
+                StringBuilder row = new StringBuilder(String.format("  %-" + width + "s", g.name(s)));
+                for (Solution sol : sols) {
+                    int a = sol.pi.actionIndex[s];
+                    String to = (a >= 0 && a < g.degree(s)) ? g.name(g.targets[g.offsets[s] + a]) : "(invalid)";
+                    row.append(String.format("%" + col + "s", to));
+                }
+                out.println(row);
+            }
+        } else {
+            out.println("No policy (all nodes are chance/terminal/forced-single-edge).");
+        }
+
+        out.println("Values:");
+        out.println(header);
+        for (int s = 0; s < g.n; s++) {
+            StringBuilder row = new StringBuilder(String.format("  %-" + width + "s", g.name(s)));
+            for (Solution sol : sols)
+                row.append(String.format(Locale.ROOT, "%" + col + ".3f", sol.V[s]));
+            out.println(row);
+        }
+    }
+
+    // 0.9 rather than 0.900000, range steps leave float noise so round to 6 places first
+    static String trimDf(double df) {
+        return new java.math.BigDecimal(String.format(Locale.ROOT, "%.6f", df)).stripTrailingZeros().toPlainString();
     }
 
     /**
      * Prints output
      * 
-     * @param g  graph created by buildGraph
-     * @param pi Computed policy
-     * @param V  values generated
+     * @param g   graph created by buildGraph
+     * @param pi  Computed policy
+     * @param V   values generated
+     * @param out where to print, stdout or a serve reply
      */
-    static void printOutput(Graph g, Policy pi, double[] V) {
+    static void printOutput(Graph g, Policy pi, double[] V, PrintStream out) {
         // Detect if there is any policy-relevant decision node
         boolean hasPolicy = false;
         for (int s = 0; s < g.n; s++) {
-            if (g.isDecision[s] && !g.forcedForSingleEdge[s]) {
+            if (g.hasChoice(s)) {
                 hasPolicy = true;
                 break;
             }
         }
 
         if (hasPolicy) {
-            System.out.println("Optimal Policy:");
+            out.println("Optimal Policy:");
             for (int s = 0; s < g.n; s++) {
-                if (g.isDecision[s] && !g.forcedForSingleEdge[s]) {
+                if (g.hasChoice(s)) {
                     int a = pi.actionIndex[s];
-                    int[] outs = g.edges[s];
-                    String to = (a >= 0 && a < outs.length) ? g.names[outs[a]] : "(invalid)";
-                    System.out.printf("  %s -> %s%n", g.names[s], to);
+                    String to = (a >= 0 && a < g.degree(s)) ? g.name(g.targets[g.offsets[s] + a]) : "(invalid)";
+                    out.printf("  %s -> %s%n", g.name(s), to);
                 }
             }
         } else {
-            System.out.println("No policy (all nodes are chance/terminal/forced-single-edge).");
+            out.println("No policy (all nodes are chance/terminal/forced-single-edge).");
         }
 
-        System.out.println("Values:");
+        out.println("Values:");
         for (int s = 0; s < g.n; s++) {
-            System.out.printf("  %s : %.3f%n", g.names[s], V[s]);
+            out.printf(Locale.ROOT, "  %s : %.3f%n", g.name(s), V[s]);
         }
     }
 